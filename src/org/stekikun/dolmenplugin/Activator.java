@@ -7,6 +7,9 @@ import org.eclipse.jface.viewers.IDecoration;
 import org.eclipse.swt.graphics.Image;
 import org.eclipse.ui.plugin.AbstractUIPlugin;
 import org.osgi.framework.BundleContext;
+import org.stekikun.dolmenplugin.base.MarkerForwarder;
+import org.stekikun.dolmenplugin.base.Trace;
+import org.stekikun.dolmenplugin.builders.WorkerPool;
 
 /**
  * The activator class controls the plug-in life cycle
@@ -19,6 +22,9 @@ public class Activator extends AbstractUIPlugin {
 	// The shared instance
 	private static Activator plugin;
 	
+	// The service forwarding JDT problems to Dolmen descriptions
+	private MarkerForwarder markerForwarder;
+	
 	/**
 	 * The constructor
 	 */
@@ -32,6 +38,8 @@ public class Activator extends AbstractUIPlugin {
 	public void start(BundleContext context) throws Exception {
 		super.start(context);
 		plugin = this;
+		markerForwarder = new MarkerForwarder();
+		markerForwarder.start();
 	}
 
 	/*
@@ -39,6 +47,12 @@ public class Activator extends AbstractUIPlugin {
 	 * @see org.eclipse.ui.plugin.AbstractUIPlugin#stop(org.osgi.framework.BundleContext)
 	 */
 	public void stop(BundleContext context) throws Exception {
+		Trace.flush();
+		WorkerPool.shutdown();
+		if (markerForwarder != null) {
+			markerForwarder.stop();
+			markerForwarder = null;
+		}
 		plugin = null;
 		super.stop(context);
 	}
@@ -52,6 +66,16 @@ public class Activator extends AbstractUIPlugin {
 		return plugin;
 	}
 
+	/**
+	 * Returns the workspace-wide service which forwards the JDT problems
+	 * in resources generated by Dolmen to their Dolmen descriptions
+	 * 
+	 * @return the marker forwarding service
+	 */
+	public MarkerForwarder getMarkerForwarder() {
+		return markerForwarder;
+	}
+
 	/**
 	 * Returns an image descriptor for the image file at the given
 	 * plug-in relative path
@@ -0,0 +1,250 @@
+package org.stekikun.dolmenplugin.base;
+
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * Gathers the options which can be used to tune the behaviour
+ * of the Dolmen {@link Builder}. These options are read from
+ * the arguments of the Dolmen build command in the project's
+ * description, i.e. in the {@code .project} file:
+ * <pre>
+ *  &lt;buildCommand&gt;
+ *    &lt;name&gt;org.stekikun.dolmenplugin.base.Builder&lt;/name&gt;
+ *    &lt;arguments&gt;
+ *      &lt;dictionary&gt;
+ *        &lt;key&gt;parallel&lt;/key&gt;
+ *        &lt;value&gt;true&lt;/value&gt;
+ *      &lt;/dictionary&gt;
+ *    &lt;/arguments&gt;
+ *  &lt;/buildCommand&gt;
+ * </pre>
+ * Options which are not specified, or whose value is invalid,
+ * take their default value.
+ *
+ * @author Stéphane Lescuyer
+ */
+public final class BuildOptions {
+
+	/**
+	 * Key of the option which enables parallel full builds
+	 * @see #parallel
+	 */
+	public static final String PARALLEL = "parallel";
+
+	/**
+	 * Key of the option which sets the number of threads
+	 * used in parallel full builds
+	 * @see #threads
+	 */
+	public static final String THREADS = "threads";
+
+	/**
+	 * Key of the option which enables tracing the builds
+	 * @see #trace
+	 */
+	public static final String TRACE = "trace";
+
+	/**
+	 * Key of the option which sets the time budget of a compilation
+	 * @see #maxTime
+	 */
+	public static final String MAX_TIME = "maxTime";
+
+	/**
+	 * Key of the option which sets the maximal number of ground
+	 * non-terminals in an expanded grammar
+	 * @see #maxNonTerminals
+	 */
+	public static final String MAX_NON_TERMINALS = "maxNonTerminals";
+
+	/**
+	 * Key of the option which sets the maximal number of states
+	 * in a lexer's automata
+	 * @see #maxStates
+	 */
+	public static final String MAX_STATES = "maxStates";
+
+	/**
+	 * Key of the option which sets the maximal size of a generated class
+	 * @see #maxGeneratedKiB
+	 */
+	public static final String MAX_GENERATED_KIB = "maxGeneratedKiB";
+
+	/**
+	 * Key of the option which enables compiling descriptions
+	 * in separate worker processes
+	 * @see #worker
+	 */
+	public static final String WORKER = "worker";
+
+	/**
+	 * Key of the option which sets the number of worker processes
+	 * @see #workers
+	 */
+	public static final String WORKERS = "workers";
+
+	/**
+	 * Key of the option which sets the maximum heap size of
+	 * each worker process
+	 * @see #workerHeap
+	 */
+	public static final String WORKER_HEAP = "workerHeap";
+
+	/**
+	 * Key of the option which sets the level of the messages
+	 * logged to the Dolmen console
+	 * @see #logLevel
+	 */
+	public static final String LOG_LEVEL = "logLevel";
+
+	/**
+	 * Key of the option which sets the number of messages
+	 * waiting to be logged to the Dolmen console
+	 * @see #logCapacity
+	 */
+	public static final String LOG_CAPACITY = "logCapacity";
+
+	/**
+	 * Whether full builds should compile the Dolmen descriptions
+	 * concurrently on a pool of {@link #threads} worker threads
+	 * (default: {@code false})
+	 */
+	public final boolean parallel;
+
+	/**
+	 * The maximal number of worker threads used in a parallel
+	 * full build (default: the number of available processors)
+	 */
+	public final int threads;
+
+	/**
+	 * Whether the activity of the builder should be {@linkplain Trace
+	 * traced} and written as a Chrome trace-event file in the workspace
+	 * metadata (default: {@code false})
+	 */
+	public final boolean trace;
+
+	/**
+	 * The maximal wall time allowed for the compilation of a single
+	 * Dolmen description, in seconds, or a non-positive value for no
+	 * limit (default: {@code 120}). The limit is only checked between
+	 * the phases of a compilation, and cannot stop a phase which runs
+	 * away, unless descriptions are compiled in {@link #worker}
+	 * processes, which are killed when they exceed it.
+	 */
+	public final int maxTime;
+
+	/**
+	 * The maximal number of ground non-terminals allowed in the
+	 * expansion of a parametric grammar, or a non-positive value
+	 * for no limit (default: {@code 10000})
+	 */
+	public final int maxNonTerminals;
+
+	/**
+	 * The maximal number of states allowed in the automata of a lexer,
+	 * or a non-positive value for no limit (default: {@code 100000}).
+	 * The limit is checked once the automata have been computed, so
+	 * only compiling in {@link #worker} processes protects the IDE
+	 * from a lexer whose determinization blows up.
+	 */
+	public final int maxStates;
+
+	/**
+	 * The maximal size allowed for a generated class, in KiB once
+	 * encoded with the charset of the generated class, or a
+	 * non-positive value for no limit (default: {@code 32768})
+	 */
+	public final int maxGeneratedKiB;
+
+	/**
+	 * Whether Dolmen descriptions should be compiled in a pool of
+	 * separate worker processes rather than in the IDE's process,
+	 * so that a runaway compilation cannot exhaust the IDE's memory
+	 * (default: {@code false})
+	 */
+	public final boolean worker;
+
+	/**
+	 * The maximal number of worker processes (default: {@code 2})
+	 */
+	public final int workers;
+
+	/**
+	 * The maximum heap size of each worker process, in MiB
+	 * (default: {@code 1024})
+	 */
+	public final int workerHeap;
+
+	/**
+	 * The level below which messages are not {@linkplain Log logged}
+	 * to the Dolmen console, one of {@code debug}, {@code info},
+	 * {@code warning} or {@code error} (default: {@code info})
+	 */
+	public final Log.Level logLevel;
+
+	/**
+	 * The maximal number of messages waiting to be {@linkplain Log
+	 * logged} to the Dolmen console, beyond which the oldest messages
+	 * are dropped (default: {@code 4096})
+	 */
+	public final int logCapacity;
+
+	/** The default options */
+	public static final BuildOptions DEFAULT = of(null);
+
+	private BuildOptions(Map<String, String> args) {
+		this.parallel = getBoolean(args, PARALLEL, false);
+		this.threads = Math.max(1,
+			getInt(args, THREADS, Runtime.getRuntime().availableProcessors()));
+		this.trace = getBoolean(args, TRACE, false);
+		this.maxTime = getInt(args, MAX_TIME, 120);
+		this.maxNonTerminals = getInt(args, MAX_NON_TERMINALS, 10000);
+		this.maxStates = getInt(args, MAX_STATES, 100000);
+		this.maxGeneratedKiB = getInt(args, MAX_GENERATED_KIB, 32768);
+		this.worker = getBoolean(args, WORKER, false);
+		this.workers = Math.max(1, getInt(args, WORKERS, 2));
+		this.workerHeap = Math.max(64, getInt(args, WORKER_HEAP, 1024));
+		this.logLevel = getLevel(args, LOG_LEVEL, Log.Level.INFO);
+		this.logCapacity = Math.max(16, getInt(args, LOG_CAPACITY, 4096));
+	}
+
+	/**
+	 * @param args	the arguments of the build command, can be {@code null}
+	 * @return the build options described by {@code args}
+	 */
+	public static BuildOptions of(@Nullable Map<String, String> args) {
+		if (args == null) return new BuildOptions(Collections.emptyMap());
+		return new BuildOptions(args);
+	}
+
+	private static boolean getBoolean(Map<String, String> args, String key, boolean def) {
+		@Nullable String val = args.get(key);
+		if (val == null) return def;
+		return Boolean.parseBoolean(val.trim());
+	}
+
+	private static int getInt(Map<String, String> args, String key, int def) {
+		@Nullable String val = args.get(key);
+		if (val == null) return def;
+		try {
+			return Integer.parseInt(val.trim());
+		} catch (NumberFormatException e) {
+			return def;
+		}
+	}
+
+	private static Log.Level getLevel(Map<String, String> args, String key, Log.Level def) {
+		@Nullable String val = args.get(key);
+		if (val == null) return def;
+		try {
+			return Log.Level.valueOf(val.trim().toUpperCase(Locale.ROOT));
+		} catch (IllegalArgumentException e) {
+			return def;
+		}
+	}
+}
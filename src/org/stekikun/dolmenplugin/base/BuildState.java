@@ -0,0 +1,356 @@
+package org.stekikun.dolmenplugin.base;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.IMarker;
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.resources.IWorkspaceRoot;
+import org.eclipse.core.runtime.Path;
+import org.eclipse.jdt.annotation.Nullable;
+import org.stekikun.dolmen.codegen.LexBuffer.Position;
+import org.stekikun.dolmen.codegen.SourceMapping;
+import org.stekikun.dolmenplugin.Activator;
+
+/**
+ * Reads and writes the state of the Dolmen {@link Builder} for
+ * some project, so that the associations between Dolmen descriptions,
+ * the resources generated from them and their source mappings, as well
+ * as the JDT markers which have been forwarded to Dolmen descriptions,
+ * survive a restart of the IDE.
+ * <p>
+ * The state is stored in a compact binary file in the project's
+ * {@linkplain IProject#getWorkingLocation working location} for
+ * the plug-in, and is read through a memory-mapped buffer. Its
+ * format is:
+ * <pre>
+ *   MAGIC VERSION
+ *   #descriptions
+ *     (descr #generated (gen partial smap)*)*
+ *   #forwardings
+ *     (descr message dolmenMarker #jdtMarkers (jdtMarker origin)*)*
+ * </pre>
+ * where resources are denoted by their full path, markers by the path
+ * of their resource and their identifier, and integers are stored
+ * on 4 bytes in big-endian order. Whenever the format changes,
+ * {@link #VERSION} must be incremented, so that states saved in an
+ * older format are simply ignored.
+ * <p>
+ * <i>The structure of <b>composite</b> mappings, i.e. mappings
+ *  stemming from the instantiation of parameterized rules, is not
+ *  accessible from outside Dolmen, and such mappings are therefore
+ *  not saved. Generated resources whose mapping had composite
+ *  mappings are flagged as {@code partial} instead, and the
+ *  descriptions they were generated from are compiled again by the
+ *  next build once the state is loaded, so that JDT problems in these
+ *  regions are forwarded again, see {@link MarkerForwarder#loadState}.
+ * </i>
+ *
+ * @author Stéphane Lescuyer
+ */
+final class BuildState {
+
+	/**
+	 * Magic number at the start of every state file
+	 */
+	private static final int MAGIC = 0x444C4D53;	// "DLMS"
+
+	/**
+	 * The version of the state file's format
+	 */
+	private static final int VERSION = 2;
+
+	/**
+	 * The name of the state file in the project's working location
+	 */
+	private static final String STATE_FILE = "builder.state";
+
+	/**
+	 * The associations from Dolmen descriptions to the
+	 * resources generated from them and their source mappings
+	 */
+	final Map<IFile, Map<IFile, SourceMapping>> generatedMap;
+
+	/**
+	 * The forwarded JDT markers and the origin they were mapped to
+	 */
+	final Map<IMarker, MarkerForwarder.Forwarding> forwardedMarkers;
+
+	/**
+	 * The Dolmen marker associated to each forwarded origin
+	 */
+	final Map<MarkerForwarder.Forwarding, IMarker> markersByOrigin;
+
+	/**
+	 * The descriptions with some generated resource whose
+	 * source mapping could only be partially saved
+	 */
+	final Set<IFile> partialDescriptions;
+
+	private BuildState() {
+		this.generatedMap = new HashMap<>();
+		this.forwardedMarkers = new HashMap<>();
+		this.markersByOrigin = new HashMap<>();
+		this.partialDescriptions = new HashSet<>();
+	}
+
+	/**
+	 * @param project
+	 * @return the state file for the given project
+	 */
+	private static File stateFile(IProject project) {
+		return project.getWorkingLocation(Activator.PLUGIN_ID)
+				.append(STATE_FILE).toFile();
+	}
+
+	/**
+	 * Loads the builder state last saved for the given project.
+	 * Descriptions, resources and markers which do not exist
+	 * anymore are ignored.
+	 *
+	 * @param project
+	 * @return the builder state last saved for {@code project},
+	 * 	or {@code null} if there is no such state or if it could
+	 * 	not be read
+	 */
+	static @Nullable BuildState load(IProject project) {
+		final File file = stateFile(project);
+		if (!file.exists()) return null;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (buf.getInt() != MAGIC || buf.getInt() != VERSION)
+				return null;
+			BuildState state = new BuildState();
+			state.read(buf, project.getWorkspace().getRoot());
+			return state;
+		} catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+			// The state is missing or corrupted, it will be rebuilt
+			return null;
+		}
+	}
+
+	private void read(ByteBuffer buf, IWorkspaceRoot root) {
+		int ndescrs = buf.getInt();
+		for (int i = 0; i < ndescrs; ++i) {
+			IFile descr = root.getFile(Path.fromPortableString(readString(buf)));
+			int ngens = buf.getInt();
+			Map<IFile, SourceMapping> gens = new HashMap<>();
+			for (int j = 0; j < ngens; ++j) {
+				IFile gen = root.getFile(Path.fromPortableString(readString(buf)));
+				boolean partial = buf.get() != 0;
+				SourceMapping smap = readMapping(buf, gen.getName());
+				if (!gen.exists()) continue;
+				gens.put(gen, smap);
+				if (partial) partialDescriptions.add(descr);
+			}
+			if (descr.exists() && !gens.isEmpty())
+				generatedMap.put(descr, gens);
+			else
+				partialDescriptions.remove(descr);
+		}
+
+		int nfwds = buf.getInt();
+		for (int i = 0; i < nfwds; ++i) {
+			IFile descr = root.getFile(Path.fromPortableString(readString(buf)));
+			String message = readString(buf);
+			@Nullable IMarker dolmenMarker = readMarker(buf, root);
+			int njdts = buf.getInt();
+			for (int j = 0; j < njdts; ++j) {
+				@Nullable IMarker jdtMarker = readMarker(buf, root);
+				SourceMapping.Origin origin = readOrigin(buf);
+				if (dolmenMarker == null || jdtMarker == null) continue;
+				MarkerForwarder.Forwarding fwd = new MarkerForwarder.Forwarding(descr, origin, message);
+				forwardedMarkers.put(jdtMarker, fwd);
+				markersByOrigin.put(fwd, dolmenMarker);
+			}
+		}
+	}
+
+	/**
+	 * Saves the given builder state for the given project,
+	 * replacing any previously saved state
+	 *
+	 * @param project
+	 * @param generatedMap
+	 * @param forwardedMarkers
+	 * @param markersByOrigin
+	 * @throws IOException
+	 */
+	static void save(IProject project,
+			Map<IFile, Map<IFile, SourceMapping>> generatedMap,
+			Map<IMarker, MarkerForwarder.Forwarding> forwardedMarkers,
+			Map<MarkerForwarder.Forwarding, IMarker> markersByOrigin) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+
+		out.writeInt(generatedMap.size());
+		for (Map.Entry<IFile, Map<IFile, SourceMapping>> entry : generatedMap.entrySet()) {
+			writeString(out, entry.getKey().getFullPath().toPortableString());
+			out.writeInt(entry.getValue().size());
+			for (Map.Entry<IFile, SourceMapping> gen : entry.getValue().entrySet()) {
+				writeString(out, gen.getKey().getFullPath().toPortableString());
+				out.writeBoolean(!Mappings.isComplete(gen.getValue()));
+				writeMapping(out, gen.getValue());
+			}
+		}
+
+		// Group the forwarded JDT markers by origin
+		Map<MarkerForwarder.Forwarding, List<IMarker>> jdtMarkers = new HashMap<>();
+		forwardedMarkers.forEach((jdtMarker, fwd) ->
+			jdtMarkers.computeIfAbsent(fwd, k -> new ArrayList<>()).add(jdtMarker));
+		out.writeInt(jdtMarkers.size());
+		for (Map.Entry<MarkerForwarder.Forwarding, List<IMarker>> entry : jdtMarkers.entrySet()) {
+			final MarkerForwarder.Forwarding fwd = entry.getKey();
+			writeString(out, fwd.dolmenResource.getFullPath().toPortableString());
+			writeString(out, fwd.message);
+			writeMarker(out, markersByOrigin.get(fwd));
+			out.writeInt(entry.getValue().size());
+			for (IMarker jdtMarker : entry.getValue()) {
+				writeMarker(out, jdtMarker);
+				writeOrigin(out, forwardedMarkers.get(jdtMarker).origin);
+			}
+		}
+		out.flush();
+
+		// Write to a temporary file first so that a
+		// state file is never partially written
+		final File file = stateFile(project);
+		final File tmp = new File(file.getPath() + ".tmp");
+		Files.write(tmp.toPath(), bytes.toByteArray());
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(ByteBuffer buf) {
+		int length = buf.getInt();
+		if (length < 0 || length > buf.remaining())
+			throw new IllegalArgumentException("Invalid string length: " + length);
+		byte[] bytes = new byte[length];
+		buf.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static void writeNullableString(DataOutputStream out,
+			@Nullable String s) throws IOException {
+		out.writeBoolean(s != null);
+		if (s != null) writeString(out, s);
+	}
+
+	private static @Nullable String readNullableString(ByteBuffer buf) {
+		if (buf.get() == 0) return null;
+		return readString(buf);
+	}
+
+	private static void writeMarker(DataOutputStream out,
+			@Nullable IMarker marker) throws IOException {
+		if (marker == null) {
+			writeString(out, "");
+			out.writeLong(-1);
+			return;
+		}
+		writeString(out, marker.getResource().getFullPath().toPortableString());
+		out.writeLong(marker.getId());
+	}
+
+	private static @Nullable IMarker readMarker(ByteBuffer buf, IWorkspaceRoot root) {
+		String path = readString(buf);
+		long id = buf.getLong();
+		if (id < 0) return null;
+		@Nullable IResource res = root.findMember(Path.fromPortableString(path));
+		if (res == null) return null;
+		IMarker marker = res.getMarker(id);
+		return marker.exists() ? marker : null;
+	}
+
+	private static void writeMapping(DataOutputStream out,
+			SourceMapping smap) throws IOException {
+		List<SourceMapping.Mapping> mappings = simpleMappings(smap);
+		out.writeInt(mappings.size());
+		for (SourceMapping.Mapping mapping : mappings) {
+			out.writeInt(mapping.offset);
+			out.writeInt(mapping.length);
+			writeString(out, mapping.origin.filename);
+			out.writeInt(mapping.origin.offset);
+			out.writeInt(mapping.origin.line);
+			out.writeInt(mapping.origin.bol);
+		}
+	}
+
+	/**
+	 * @param smap
+	 * @return the mappings in {@code smap} which are not
+	 * 	composite, in increasing order of offset
+	 */
+	private static List<SourceMapping.Mapping> simpleMappings(SourceMapping smap) {
+		List<SourceMapping.Mapping> res = new ArrayList<>();
+		smap.forEach(mapping -> {
+			if (!Mappings.isComposite(mapping))
+				res.add(mapping);
+		});
+		return res;
+	}
+
+	private static SourceMapping readMapping(ByteBuffer buf, String generated) {
+		SourceMapping smap = new SourceMapping(generated);
+		int nmappings = buf.getInt();
+		for (int i = 0; i < nmappings; ++i) {
+			int offset = buf.getInt();
+			int length = buf.getInt();
+			String filename = readString(buf);
+			int ooffset = buf.getInt();
+			int line = buf.getInt();
+			int bol = buf.getInt();
+			smap.add(offset, length, new Position(filename, ooffset, line, bol), null);
+		}
+		return smap;
+	}
+
+	private static void writeOrigin(DataOutputStream out,
+			SourceMapping.Origin origin) throws IOException {
+		out.writeInt(origin.offset);
+		out.writeInt(origin.length);
+		writeNullableString(out, origin.ruleName);
+		out.writeInt(origin.replacements.size());
+		for (Map.Entry<String, String> entry : origin.replacements.entrySet()) {
+			writeString(out, entry.getKey());
+			writeString(out, entry.getValue());
+		}
+	}
+
+	private static SourceMapping.Origin readOrigin(ByteBuffer buf) {
+		int offset = buf.getInt();
+		int length = buf.getInt();
+		@Nullable String ruleName = readNullableString(buf);
+		int nrepls = buf.getInt();
+		Map<String, String> replacements = new HashMap<>();
+		for (int i = 0; i < nrepls; ++i) {
+			String key = readString(buf);
+			replacements.put(key, readString(buf));
+		}
+		return new SourceMapping.Origin(offset, length, ruleName, replacements);
+	}
+}
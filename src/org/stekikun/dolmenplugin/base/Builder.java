@@ -1,54 +1,49 @@
 package org.stekikun.dolmenplugin.base;
 
+import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.eclipse.core.resources.IFile;
-import org.eclipse.core.resources.IFolder;
-import org.eclipse.core.resources.IMarker;
-import org.eclipse.core.resources.IMarkerDelta;
 import org.eclipse.core.resources.IProject;
 import org.eclipse.core.resources.IResource;
-import org.eclipse.core.resources.IResourceChangeEvent;
-import org.eclipse.core.resources.IResourceChangeListener;
 import org.eclipse.core.resources.IResourceDelta;
 import org.eclipse.core.resources.IResourceDeltaVisitor;
-import org.eclipse.core.resources.IResourceVisitor;
+import org.eclipse.core.resources.IResourceRuleFactory;
+import org.eclipse.core.resources.IWorkspace;
 import org.eclipse.core.resources.IncrementalProjectBuilder;
-import org.eclipse.core.resources.ResourcesPlugin;
-import org.eclipse.core.resources.WorkspaceJob;
 import org.eclipse.core.runtime.CoreException;
 import org.eclipse.core.runtime.IConfigurationElement;
-import org.eclipse.core.runtime.IPath;
 import org.eclipse.core.runtime.IProgressMonitor;
-import org.eclipse.core.runtime.IStatus;
-import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.NullProgressMonitor;
+import org.eclipse.core.runtime.OperationCanceledException;
 import org.eclipse.core.runtime.SubMonitor;
-import org.eclipse.core.runtime.jobs.IJobFunction;
 import org.eclipse.core.runtime.jobs.ISchedulingRule;
 import org.eclipse.core.runtime.jobs.MultiRule;
-import org.eclipse.jdt.annotation.Nullable;
-import org.eclipse.jdt.core.IJavaModelMarker;
 import org.eclipse.jdt.core.IJavaProject;
 import org.eclipse.jdt.core.JavaCore;
 import org.stekikun.dolmen.codegen.SourceMapping;
-import org.stekikun.dolmen.common.Iterables;
-import org.stekikun.dolmen.common.Nulls;
+import org.stekikun.dolmenplugin.Activator;
+import org.stekikun.dolmenplugin.builders.Compilation;
 import org.stekikun.dolmenplugin.builders.JGCompile;
 import org.stekikun.dolmenplugin.builders.JLCompile;
 import org.stekikun.dolmenplugin.handlers.HandlerUtils;
+import org.stekikun.dolmenplugin.lib.ByRef;
 
 /**
  * ...
  * 
  * @author Stéphane Lescuyer
  */
-public final class Builder extends IncrementalProjectBuilder 
-	implements IResourceChangeListener {
+public final class Builder extends IncrementalProjectBuilder {
 	
 	/**
 	 * ID of Dolmen builder (keep it sync with plugin.xml)
@@ -63,41 +58,31 @@ public final class Builder extends IncrementalProjectBuilder
 	private IJavaProject javaProject;
 	
 	/**
-	 * The builder will keep track of the various resources which
-	 * are generated, associated to the Dolmen resource that they
-	 * have been generated from and their known source mapping
+	 * The options of the Dolmen build command, as found
+	 * in the project description when the current build
+	 * was started
 	 */
-	private final Map<IFile, Map<IFile, SourceMapping>> generatedMap;
+	private BuildOptions options;
 	
 	/**
-	 * The builder will listen to all marker changes from the JDT
-	 * in resources generated by Dolmen and copy them back into the
-	 * Dolmen source file if it belongs to a source mapping. We keep
-	 * the map from JDT markers to the computed origin in the source
-	 * mapping.
+	 * The source folders and output locations of the project,
+	 * as found in the project's classpath when the current build
+	 * was started
 	 */
-	private final Map<IMarker, Forwarding> forwardedMarkers;
+	private ClasspathIndex classpath;
 	
 	/**
-	 * For every origin corresponding to a forwarded marker from a 
-	 * generated JDT resource, we keep a single Dolmen marker for
-	 * all the origins that represent the same region. These are
-	 * given by {@link #markersByOrigin}. The set of different
-	 * rule names for which some origin has been reported is
-	 * recorded in {@link #ruleNamesByOrigin}, with the multiplicity
-	 * with which any single rule name appears. These two maps rely
-	 * on the fact that rule names are ignored when comparing origins.
+	 * The service which keeps track of the resources generated
+	 * by Dolmen and forwards JDT problems in these resources
+	 * to their Dolmen descriptions
 	 */
-	private final Map<Forwarding,
-		Map<@Nullable String, Integer>> ruleNamesByOrigin;
-	private final Map<Forwarding, IMarker> markersByOrigin;
+	private MarkerForwarder forwarder;
 	
 	public Builder() {
-		this.generatedMap = new HashMap<>();
-		this.forwardedMarkers = new HashMap<>();
-		this.ruleNamesByOrigin = new HashMap<>();
-		this.markersByOrigin = new HashMap<>();
 		this.javaProject = null;
+		this.forwarder = null;
+		this.options = BuildOptions.DEFAULT;
+		this.classpath = null;
 	}
 
 	/**
@@ -110,12 +95,7 @@ public final class Builder extends IncrementalProjectBuilder
 	 * @param smap
 	 */
 	private void add(IFile dolmen, IFile generated, SourceMapping smap) {
-		Map<IFile, SourceMapping> gens = generatedMap.get(dolmen);
-		if (gens == null) {
-			gens = new HashMap<>();
-			generatedMap.put(dolmen, gens);
-		}
-		gens.put(generated, smap);
+		forwarder.add(dolmen, generated, smap);
 	}
 	
 	/**
@@ -125,9 +105,7 @@ public final class Builder extends IncrementalProjectBuilder
 	 * @param ifile
 	 */
 	private void remove(IFile ifile) {
-		generatedMap.remove(ifile);
-		for (Map<IFile, SourceMapping> gens : generatedMap.values())
-			gens.remove(ifile);
+		forwarder.remove(ifile);
 	}
 	
 	@Override
@@ -142,111 +120,82 @@ public final class Builder extends IncrementalProjectBuilder
 		
 		IProject project = getProject();
 		javaProject = JavaCore.create(project);
-		ResourcesPlugin.getWorkspace()
-			.addResourceChangeListener(this, IResourceChangeEvent.POST_CHANGE);
+		forwarder = Activator.getDefault().getMarkerForwarder();
+		forwarder.loadState(project);
 	}
 	
 	protected void dispose() {
-		ResourcesPlugin.getWorkspace().removeResourceChangeListener(this);
-	}
-
-	@Override
-	public void resourceChanged(IResourceChangeEvent event) {
-		IMarkerDelta[] deltas = 
-			event.findMarkerDeltas(IJavaModelMarker.JAVA_MODEL_PROBLEM_MARKER, true);
-		
-		ISchedulingRule schedulingRule = null;
-		ArrayList<MarkerJob> addedMarkerJobs = new ArrayList<>();
-		ArrayList<MarkerJob> removedMarkerJobs = new ArrayList<>();
-		
-		for (IMarkerDelta delta : deltas) {
-			// Find out if delta is associated to resource
-			// generated by Dolmen
-			IResource res = delta.getResource();
-			IFile dolmenRes = null;
-			SourceMapping smap = null;
-			for (Map.Entry<IFile, Map<IFile, SourceMapping>> entry 
-					: generatedMap.entrySet()) {
-				smap = entry.getValue().get(res);
-				if (smap != null) {
-					dolmenRes = entry.getKey();
-					break;
-				}
-			}
-			if (smap == null) continue;
-			
-			// Handle the marker
-			IMarker jdtMarker = delta.getMarker();
-			switch (delta.getKind()) {
-			case IResourceDelta.ADDED: {
-				log("ADDED marker " + delta.getId() + " on " + delta.getResource());
-				addedMarkerJobs.add(addMarker(jdtMarker, dolmenRes, smap));
-				break;
-			}
-			case IResourceDelta.CHANGED: {
-				log("CHANGED marker " + delta.getId() + " on " + delta.getResource());
-				addedMarkerJobs.add(addMarker(jdtMarker, dolmenRes, smap));
-				break;
-			}
-			case IResourceDelta.REMOVED: {
-				log("REMOVED marker " + delta.getId() + " on " + delta.getResource());
-				removedMarkerJobs.add(removeMarker(jdtMarker));
-				break;
-			}
-			}
-			
-			// Add the resource to the scheduling rule
-			schedulingRule = MultiRule.combine(schedulingRule, res);
-		}
-		
-		if (addedMarkerJobs.isEmpty() && removedMarkerJobs.isEmpty()) return;
-		
-		WorkspaceJob job = new WorkspaceJob("Copying JDT markers to Dolmen") {			
-			@Override
-			public IStatus runInWorkspace(IProgressMonitor monitor) throws CoreException {
-				// Do the deletion first, and the changes/additions next
-				for (MarkerJob job : Iterables.concat(removedMarkerJobs, addedMarkerJobs))
-					job.run(monitor);
-				forwardingsSanityCheck();
-				return Status.OK_STATUS;
-			}
-		}; 
-		job.setRule(schedulingRule);
-		job.schedule();
+		forwarder.saveState(getProject());
 	}
 	
+	/**
+	 * Compiling a Dolmen description does not modify the workspace
+	 * until the outcome is {@linkplain Compilation#commit committed},
+	 * and each commit only {@linkplain Compilation#getRule locks} the
+	 * description and the resources generated from it. Therefore builds
+	 * run without holding any rule, which lets the user keep editing
+	 * other resources while descriptions are compiled, except for clean
+	 * builds which may delete resources anywhere in the project.
+	 */
 	@Override
 	public ISchedulingRule getRule(int kind, Map<String, String> args) {
-		return super.getRule(kind, args);
+		if (kind == CLEAN_BUILD)
+			return getProject();
+		return null;
 	}
 
 	@Override
 	protected IProject[] build(int kind, Map<String, String> args, IProgressMonitor monitor)
 			throws CoreException {
-		switch (kind) {
-		case FULL_BUILD:
-			fullBuild(monitor);
-			break;
-		case INCREMENTAL_BUILD:
-		case AUTO_BUILD:
-			IResourceDelta delta = getDelta(getProject());
-			if (delta == null)
+		options = BuildOptions.of(args);
+		Trace.setTraced(getProject(), options.trace);
+		Log.configure(options);
+		try (Trace.Span span = Trace.begin("builder", buildName(kind), getProject())) {
+			classpath = ClasspathIndex.of(javaProject);
+			forwarder.loadState(getProject());
+			switch (kind) {
+			case FULL_BUILD:
 				fullBuild(monitor);
-			else
-				incrementalBuild(delta, monitor);
-			break;
-		case CLEAN_BUILD:
-			clean(monitor);
-			break;
-		default:
-			logErr("Unknown build kind (ignoring): " + kind);
+				break;
+			case INCREMENTAL_BUILD:
+			case AUTO_BUILD:
+				IResourceDelta delta = getDelta(getProject());
+				if (delta == null)
+					fullBuild(monitor);
+				else
+					incrementalBuild(delta, monitor);
+				break;
+			case CLEAN_BUILD:
+				clean(monitor);
+				break;
+			default:
+				logErr("Unknown build kind (ignoring): " + kind);
+			}
+			// Generated resources are refreshed as they are committed,
+			// there is no need to refresh the whole project
+			forwarder.saveState(getProject());
+		} finally {
+			if (Trace.isEnabled())
+				Trace.flush();
 		}
-		// Refresh the whole project
-		getProject().refreshLocal(IResource.DEPTH_INFINITE, monitor);
 		// No project dependencies for the Dolmen builder
 		return null;
 	}
 
+	/**
+	 * @param kind
+	 * @return a human-readable name for the given kind of build
+	 */
+	private static String buildName(int kind) {
+		switch (kind) {
+		case FULL_BUILD: return "Full build";
+		case INCREMENTAL_BUILD: return "Incremental build";
+		case AUTO_BUILD: return "Auto build";
+		case CLEAN_BUILD: return "Clean build";
+		default: return "Build";
+		}
+	}
+
 	/**
 	 * Performs a full build on this project
 	 * 
@@ -254,21 +203,109 @@ public final class Builder extends IncrementalProjectBuilder
 	 * @throws CoreException
 	 */
 	private void fullBuild(final IProgressMonitor monitor) throws CoreException {
-		SubMonitor subMonitor = SubMonitor.convert(monitor);
+		SubMonitor subMonitor = SubMonitor.convert(monitor, "Building Dolmen descriptions", 1);
 		log("FULL BUILD");
-		getProject().accept(this.new ResourceVisitor(subMonitor));
+		// All descriptions are compiled, including those whose source
+		// mappings could not be fully restored from the last session
+		forwarder.takePartial(getProject());
+		// Collect the descriptions first, so that progress can be reported
+		final List<IFile> descriptions = new ArrayList<>();
+		try (Trace.Span span = Trace.begin("builder", "Visit project", getProject())) {
+			getProject().accept(res -> visit(res, descriptions::add));
+		}
+		if (descriptions.isEmpty()) return;
+		if (options.parallel) {
+			parallelFullBuild(descriptions, subMonitor);
+			return;
+		}
+		subMonitor.setWorkRemaining(descriptions.size());
+		for (IFile ifile : descriptions)
+			compile(ifile, subMonitor.split(1));
 	}
 	
-	private /* non-static */ class ResourceVisitor implements IResourceVisitor {
-		private final SubMonitor monitor;
+	/**
+	 * Performs a full build on this project where the given Dolmen 
+	 * descriptions are compiled concurrently on a bounded pool
+	 * of worker threads.
+	 * <p>
+	 * Only the generation of the Java classes is performed by
+	 * the workers: the compilations are {@linkplain Compilation#commit
+	 * committed} on the builder's thread, each under its own
+	 * scheduling rule, and in the order in which the descriptions
+	 * were found. Workers do not report progress but stop
+	 * as soon as {@code monitor} is canceled.
+	 * 
+	 * @param descriptions
+	 * @param monitor
+	 * @throws CoreException
+	 */
+	private void parallelFullBuild(final List<IFile> descriptions,
+			final SubMonitor monitor) throws CoreException {
+		monitor.setWorkRemaining(descriptions.size());
+		// Progress monitors are not thread-safe, but workers
+		// only need to know whether the build was canceled
+		final IProgressMonitor canceled = new NullProgressMonitor() {
+			@Override
+			public boolean isCanceled() {
+				return monitor.isCanceled();
+			}
+		};
 		
-		ResourceVisitor(SubMonitor monitor) {
-			this.monitor = monitor;
+		final int nthreads = Math.min(options.threads, descriptions.size());
+		final AtomicInteger threadCount = new AtomicInteger(0);
+		final ExecutorService pool = Executors.newFixedThreadPool(nthreads, runnable -> {
+			Thread thread = new Thread(runnable,
+				"Dolmen compiler #" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		try {
+			// Each compilation logs into its own buffer so that
+			// the reports of concurrent compilations do not interleave
+			final List<ByteArrayOutputStream> logs = new ArrayList<>(descriptions.size());
+			final List<Future<Compilation>> results = new ArrayList<>(descriptions.size());
+			for (IFile ifile : descriptions) {
+				ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+				logs.add(buffer);
+				results.add(pool.submit(() ->
+					generate(ifile, new PrintStream(buffer, true), SubMonitor.convert(canceled), options)));
+			}
+			
+			for (int i = 0; i < descriptions.size(); ++i) {
+				final SubMonitor progress = monitor.split(1);
+				final IFile ifile = descriptions.get(i);
+				final Compilation compilation = await(results.get(i));
+				PrintStream out = getLoggingStream();
+				out.write(logs.get(i).toByteArray(), 0, logs.get(i).size());
+				out.flush();
+				commit(ifile, compilation, out, progress);
+			}
+		} finally {
+			pool.shutdownNow();
 		}
-		
-		@Override
-		public boolean visit(IResource resource) throws CoreException {
-			return Builder.this.visit(resource, monitor);
+	}
+	
+	/**
+	 * Waits for the given compilation to be completed by a worker
+	 * thread, and returns it. Unchecked exceptions thrown by the
+	 * worker are rethrown in the calling thread.
+	 * 
+	 * @param future
+	 * @return the compilation computed by the worker
+	 */
+	private static Compilation await(Future<Compilation> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new OperationCanceledException();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new IllegalStateException(cause);
 		}
 	}
 	
@@ -281,9 +318,20 @@ public final class Builder extends IncrementalProjectBuilder
 	 */
 	private void incrementalBuild(IResourceDelta delta, IProgressMonitor monitor)
 			throws CoreException {
-		SubMonitor subMonitor = SubMonitor.convert(monitor);
-		displayDelta(null, delta);
-		delta.accept(new DeltaVisitor(subMonitor));
+		SubMonitor subMonitor = SubMonitor.convert(monitor, "Building Dolmen descriptions", 1);
+		if (Log.isEnabled(Log.Level.DEBUG))
+			displayDelta(Log.stream(Log.Level.DEBUG), delta);
+		// Descriptions are compiled as they are visited, so
+		// the compilations' spans are nested in this one
+		try (Trace.Span span = Trace.begin("builder", "Visit delta", getProject())) {
+			delta.accept(new DeltaVisitor(subMonitor));
+		}
+		// Descriptions whose source mappings could not be fully
+		// restored from the last session are compiled again
+		for (IFile ifile : forwarder.takePartial(getProject())) {
+			if (ifile.exists())
+				compile(ifile, subMonitor.setWorkRemaining(100).split(1));
+		}
 	}
 	
 	private /* non-static */ class DeltaVisitor implements IResourceDeltaVisitor {
@@ -306,7 +354,8 @@ public final class Builder extends IncrementalProjectBuilder
 				// builder's delta so we can safely ignore folders and
 				// handle files only
 				if (delta.getResource().getType() == IResource.FILE)
-					removedResource((IFile) (delta.getResource()), monitor);
+					removedResource((IFile) (delta.getResource()),
+						monitor.setWorkRemaining(100).split(1));
 				return true;
 			}
 			default:
@@ -315,14 +364,52 @@ public final class Builder extends IncrementalProjectBuilder
 		}
 	}
 	
+	/**
+	 * Removes all the files generated by Dolmen in the project, as
+	 * well as all Dolmen problem markers. The generated files are
+	 * found in the forwarder's index when it is known to be complete,
+	 * and by scanning the whole project otherwise.
+	 */
 	@Override
 	protected void clean(IProgressMonitor monitor) throws CoreException {
 		log("DolmenBuilder.clean");
 		super.clean(monitor);
-		IResource[] members = getProject().members();
-		SubMonitor subMonitor = SubMonitor.convert(monitor, members.length);
-		for (IResource resource : getProject().members())
-			clean(resource, subMonitor.newChild(1));
+		final IProject project = getProject();
+		forwarder.loadState(project);
+		final SubMonitor subMonitor = SubMonitor.convert(monitor, 10);
+		final List<IFile> generated;
+		try (Trace.Span span = Trace.begin("builder", "Find generated files", project)) {
+			if (forwarder.isIndexed(project)) {
+				generated = new ArrayList<>();
+				for (IFile gen : forwarder.generatedIn(project)) {
+					// The index may be out of date if the resource
+					// has been changed since it was generated
+					if (gen.exists() && Utils.isDolmenGenerated(gen))
+						generated.add(gen);
+					else
+						remove(gen);
+				}
+			}
+			else
+				generated = scanGenerated(project);
+		}
+		subMonitor.worked(1);
+		
+		// Delete the generated files and the markers in a single
+		// workspace operation, so that only one delta is broadcast
+		final IWorkspace workspace = project.getWorkspace();
+		try (Trace.Span span = Trace.begin("builder", "Delete generated files", project)) {
+			workspace.run(pm -> {
+				final SubMonitor progress = SubMonitor.convert(pm, generated.size() + 1);
+				project.deleteMarkers(Marker.ID, true, IResource.DEPTH_INFINITE);
+				progress.worked(1);
+				for (IFile gen : generated) {
+					remove(gen);
+					gen.delete(IResource.KEEP_HISTORY, progress.newChild(1));
+				}
+			}, project, IWorkspace.AVOID_UPDATE, subMonitor.newChild(9));
+		}
+		forwarder.indexed(project);
 	}
 
 	/**
@@ -338,6 +425,41 @@ public final class Builder extends IncrementalProjectBuilder
 	 */
 	private boolean visit(IResource res, SubMonitor monitor)
 			throws CoreException {
+		// The number of descriptions in the delta is not known in advance,
+		// so each one is given a fraction of the remaining work
+		return visit(res, ifile -> compile(ifile, monitor.setWorkRemaining(100).split(1)));
+	}
+	
+	/**
+	 * A callback for the Dolmen descriptions encountered
+	 * by {@link Builder#visit(IResource, IDescriptionHandler)}
+	 * 
+	 * @author Stéphane Lescuyer
+	 */
+	@FunctionalInterface
+	private static interface IDescriptionHandler {
+		/**
+		 * Called on every lexer or grammar description which
+		 * must be handled by the builder
+		 * 
+		 * @param ifile
+		 * @throws CoreException
+		 */
+		void handle(IFile ifile) throws CoreException;
+	}
+	
+	/**
+	 * Visits the given resource and calls {@code handler} on it
+	 * if it is a Dolmen description which must be compiled
+	 * 
+	 * @param res
+	 * @param handler
+	 * @return {@code true} if the children of the given resource must
+	 * 	be visited as well
+	 * @throws CoreException
+	 */
+	private boolean visit(IResource res, IDescriptionHandler handler)
+			throws CoreException {
 		switch (Utils.IResourceKind.of(res)) {
 		case ROOT:
 		case PROJECT:
@@ -350,11 +472,10 @@ public final class Builder extends IncrementalProjectBuilder
 			// in there as well.
 			// NB: Other specific output folders may be specified for
 			//  in the project's configuration, so avoiding the default
-			//  output folder is not enough in general.
-			IPath outputFolder = javaProject.getOutputLocation();
-			if (res.getProjectRelativePath().equals(outputFolder))
-				return false;
-			return true;
+			//  output folder is not enough in general: all output
+			//  folders are pruned, as well as folders which are not
+			//  on the classpath and contain no source folders.
+			return classpath.mustVisit(res);
 		}
 		case FILE: {
 			final IFile ifile = (IFile) res;
@@ -368,32 +489,85 @@ public final class Builder extends IncrementalProjectBuilder
 			// we deal with it in the builder.
 			// This should also take care of all files in all output folders,
 			// unless output folders and classpath entries are not exclusive?
-			if (!javaProject.isOnClasspath(res)) return false;
+			if (!classpath.isOnClasspath(ifile)) return false;
 			
-			if ("jl".equals(extension)) {
-				Map<IFile, SourceMapping> generated =
-					new JLCompile(getLoggingStream(), monitor)
-						.compile(getProject(), ifile);
-				generated.forEach((gen, smap) -> add(ifile, gen, smap));
-			} else if ("jg".equals(extension)) {
-				Map<IFile, SourceMapping> generated =
-					new JGCompile(getLoggingStream(), monitor)
-						.compile(getProject(), ifile);
-				generated.forEach((gen, smap) -> add(ifile, gen, smap));
-			}
-			// Update the editors showing that resource if any
-			HandlerUtils.forEachDolmenEditor((editor) -> {
-				if (ifile.equals(editor.getInput()))
-					editor.getEditorSite().getShell().getDisplay().asyncExec(() ->
-						editor.forceUpdate());
-				return true;
-			});
+			handler.handle(ifile);
 			return true;
 		}
 		}
 		throw new IllegalStateException();
 	}
 	
+	/**
+	 * Compiles the given Dolmen description and commits the
+	 * results right away
+	 * 
+	 * @param ifile
+	 * @param monitor
+	 * @throws CoreException
+	 */
+	private void compile(IFile ifile, SubMonitor monitor) throws CoreException {
+		final PrintStream out = getLoggingStream();
+		final SubMonitor progress = SubMonitor.convert(monitor, 10);
+		Compilation compilation = generate(ifile, out, progress.split(9), options);
+		commit(ifile, compilation, out, progress.split(1));
+	}
+	
+	/**
+	 * Compiles the given Dolmen description, without modifying the workspace
+	 * 
+	 * @param ifile		a lexer or grammar description
+	 * @param out		where the compilation should log its progression
+	 * @param monitor
+	 * @param options	the options of the build
+	 * @return the outcome of the compilation of {@code ifile}
+	 */
+	private static Compilation generate(IFile ifile, PrintStream out,
+			SubMonitor monitor, BuildOptions options) {
+		if ("jl".equals(ifile.getFileExtension()))
+			return new JLCompile(out, monitor, options).generate(ifile);
+		else
+			return new JGCompile(out, monitor, options).generate(ifile);
+	}
+	
+	/**
+	 * Commits the given compilation of the Dolmen description {@code ifile},
+	 * records the generated resources and updates the editors showing
+	 * {@code ifile}, if any. The {@linkplain Compilation#getRule rule}
+	 * of the compilation is only held while it is being committed.
+	 * 
+	 * @param ifile
+	 * @param compilation
+	 * @param out
+	 * @param monitor
+	 */
+	private void commit(IFile ifile, Compilation compilation,
+			PrintStream out, SubMonitor monitor) {
+		final ByRef<Map<IFile, SourceMapping>> committed = ByRef.make();
+		Map<IFile, SourceMapping> generated;
+		// The span includes the time spent waiting for the rule
+		try (Trace.Span span = Trace.begin("builder", "Commit", ifile)) {
+			getProject().getWorkspace().run(
+				pm -> committed.set(compilation.commit(pm)),
+				compilation.getRule(), IWorkspace.AVOID_UPDATE, monitor);
+			generated = committed.get();
+		} catch (CoreException e) {
+			e.printStackTrace(out);
+			generated = Collections.emptyMap();
+		}
+		generated.forEach((gen, smap) -> add(ifile, gen, smap));
+		// Update the editors showing that resource if any
+		HandlerUtils.forEachDolmenEditor((editor) -> {
+			if (ifile.equals(editor.getInput()))
+				editor.getEditorSite().getShell().getDisplay().asyncExec(() -> {
+					try (Trace.Span span = Trace.begin("ui", "Update editor", ifile)) {
+						editor.forceUpdate();
+					}
+				});
+			return true;
+		});
+	}
+	
 	/**
 	 * Handles the fact that the given file resource has been removed,
 	 * potentially deleting associated derived resources
@@ -404,58 +578,63 @@ public final class Builder extends IncrementalProjectBuilder
 	 */
 	private void removedResource(IFile ifile, SubMonitor monitor) 
 			throws CoreException {
-		// Delete the resources derived from ifile, if any
-		Map<IFile, SourceMapping> gens =
-			generatedMap.getOrDefault(ifile, Collections.emptyMap());
-		for (IFile gen : gens.keySet())
-			gen.delete(IResource.KEEP_HISTORY, monitor);
+		// Delete the resources derived from ifile, if any, only
+		// locking these resources while they are being deleted
+		Map<IFile, SourceMapping> gens = forwarder.generatedFrom(ifile);
+		final List<IFile> toDelete = new ArrayList<>(gens.keySet());
+		if (!toDelete.isEmpty()) {
+			final IWorkspace workspace = getProject().getWorkspace();
+			final IResourceRuleFactory factory = workspace.getRuleFactory();
+			ISchedulingRule rule = null;
+			for (IFile gen : toDelete)
+				rule = MultiRule.combine(rule, factory.deleteRule(gen));
+			workspace.run(pm -> {
+				for (IFile gen : toDelete)
+					gen.delete(IResource.KEEP_HISTORY, pm);
+			}, rule, IWorkspace.AVOID_UPDATE, monitor);
+		}
+		// Lexers and grammars cached for ifile are of no use anymore,
+		// in particular when ifile was renamed, since caches are per resource
+		if ("jl".equals(ifile.getFileExtension()))
+			JLCompile.forget(ifile);
+		else if ("jg".equals(ifile.getFileExtension()))
+			JGCompile.forget(ifile);
 		// Track the fact the resource has been removed
 		remove(ifile);
 	}
 	
 	/**
-	 * Cleans the given resource, i.e. removes it if the file
-	 * has been generated by Dolmen and removes all potential
-	 * Dolmen problem markers
+	 * Scans the whole project for files generated by Dolmen, which
+	 * is only needed when the forwarder's index is not complete
 	 * 
-	 * @param resource	should be a folder or a file
-	 * @param monitor
+	 * @param project
+	 * @return the files generated by Dolmen in {@code project}
 	 * @throws CoreException
 	 */
-	private void clean(IResource resource, SubMonitor monitor)
+	private static List<IFile> scanGenerated(IProject project)
 			throws CoreException {
-		switch (Utils.IResourceKind.of(resource)) {
-		case ROOT:
-		case PROJECT:
-			return;
-		case FOLDER: {
-			final IFolder ifolder = (IFolder) resource;
-			for (IResource res : ifolder.members())
-				clean(res, monitor);
-			return;
-		}
-		case FILE: {
-			final IFile ifile = (IFile) resource;
-			// If the file has been generated by Dolmen, it must be deleted
-			if (Utils.isDolmenGenerated(ifile)) {
-				remove(ifile);
-				ifile.delete(IResource.KEEP_HISTORY, monitor);
-			}
-			// Otherwise, if the file could hold Dolmen problems, they
-			// must be deleted
-			if (Utils.isDolmenResource(ifile))
-				Marker.deleteAll(ifile);
-			return;
-		}
-		}
+		final List<IFile> generated = new ArrayList<>();
+		project.accept(proxy -> {
+			// Generated files are derived, which proxies tell
+			// cheaply, so that the persistent property of other
+			// files need not be read
+			if (proxy.getType() != IResource.FILE || !proxy.isDerived())
+				return true;
+			final IFile ifile = (IFile) proxy.requestResource();
+			if (Utils.isDolmenGenerated(ifile))
+				generated.add(ifile);
+			return true;
+		}, IResource.NONE);
+		return generated;
 	}
 	
 	/**
-	 * @return a stream where the builders can log their progression
-	 * 	(typically, a console, or the standard output)
+	 * @return a stream where the builders can log their progression,
+	 * 	which ends up in the Dolmen console
+	 * @see Log
 	 */
 	private PrintStream getLoggingStream() {
-		return new PrintStream(Console.findDolmenConsole().newMessageStream());
+		return Log.stream(Log.Level.INFO);
 	}
 	
 	/**
@@ -525,202 +704,19 @@ public final class Builder extends IncrementalProjectBuilder
 			new DeltaDisplayer(out).display(delta);
 	}
 	
-	private static boolean debug = false;
-	
 	/**
-	 * Logs some message to standard output, if {@link #debug} is {@code true}
+	 * Logs some debugging message
 	 * @param s
 	 */
 	private void log(String s) {
-		if (!debug) return;
-		System.out.println(s);
+		Log.log(Log.Level.DEBUG, s + "\n");
 	}
 
 	/**
-	 * Logs some message to standard error output, if {@link #debug} is {@code true}
+	 * Logs some warning message
 	 * @param s
 	 */
 	private void logErr(String s) {
-		if (!debug) return;
-		System.err.println(s);
-	}
-	
-	/**
-	 * Container class packing together an origin for a forwarded
-	 * marker and the associated original JDT message. It also
-	 * specifies the resource in which the marker is forwarded in
-	 * case there are several Dolmen resources with similar markers
-	 * at the same positions.
-	 * 
-	 * @author Stéphane Lescuyer
-	 */
-	private static final class Forwarding { // implements Comparable<Forwarding> {
-		final IFile dolmenResource;
-		final SourceMapping.Origin origin;
-		final String message;
-		
-		Forwarding(IFile dolmenResource, SourceMapping.Origin origin, String message) {
-			this.dolmenResource = dolmenResource;
-			this.origin = origin;
-			this.message = message;
-		}
-
-		@Override
-		public int hashCode() {
-			int result = dolmenResource.hashCode();
-			result = 31 * result + origin.hashCode();
-			result = 31 * result + message.hashCode();
-			return result;
-		}
-		
-		@Override
-		public boolean equals(Object o) {
-			if (this == o) return true;
-			if (!(o instanceof Forwarding)) return false;
-			Forwarding fwd = (Forwarding) o;
-			if (!(dolmenResource.equals(fwd.dolmenResource))) return false;
-			if (!(message.equals(fwd.message))) return false;
-			if (!(origin.equals(fwd.origin))) return false;
-			return true;
-		}
-		
-		@Override
-		public String toString() {
-			return "[origin=" + origin +", msg=" + message + "]";
-		}
-	}
-	
-	/**
-	 * Common class for all atomic jobs scheduled when
-	 * listening to JDT problem markers
-	 * 
-	 * @author Stéphane Lescuyer
-	 */
-	private abstract class MarkerJob implements IJobFunction {
-		@Override
-		public abstract IStatus run(IProgressMonitor monitor);
-	}
-
-	/**
-	 * @param jdtMarker
-	 * @return a marker job for when the given JDT marker is
-	 * 	removed, which removes the corresponding copied marker
-	 * 	in Dolmen if any
-	 */
-	MarkerJob removeMarker(IMarker jdtMarker) {
-		return new MarkerJob() {
-			@Override
-			public IStatus run(IProgressMonitor monitor) {
-				@Nullable Forwarding fwd = forwardedMarkers.get(jdtMarker);
-				if (fwd == null) return Status.OK_STATUS;
-				
-				log("[==> Remove marker " + jdtMarker.getId() + "]");
-				// Remove this origin's rule and if it was
-				// the last one, remove the forwarded marker as well
-				SourceMapping.Origin origin = fwd.origin;
-				Map<@Nullable String, Integer> rules = Nulls.ok(ruleNamesByOrigin.get(fwd));
-				Integer count = Nulls.ok(rules.get(origin.ruleName));
-				if (count == 1)
-					rules.remove(origin.ruleName);
-				else
-					rules.replace(origin.ruleName, count - 1);
-				if (rules.isEmpty()) {
-					ruleNamesByOrigin.remove(fwd);
-					IMarker dolmenMarker = Nulls.ok(markersByOrigin.remove(fwd));
-					try {
-						dolmenMarker.delete();
-					} catch (CoreException e) {
-						e.printStackTrace();
-					}
-					log("Deleted Dolmen marker " + dolmenMarker.getId() + " at " + fwd);
-				}
-				forwardedMarkers.remove(jdtMarker);
-				log("[<== Remove marker " + jdtMarker.getId() + "]");
-				
-				return Status.OK_STATUS;
-			}
-		};
-	}
-	
-	/**
-	 * @param jdtMarker
-	 * @param dolmenRes
-	 * @param smap
-	 * @return a marker job which reacts to the change or creation of
-	 * 	the given JDT problem marker by copying it on {@code dolmenRes}
-	 * 	if the marker's position can be mapped via the given source mapping
-	 */
-	MarkerJob addMarker(IMarker jdtMarker, IFile dolmenRes, SourceMapping smap) {
-		return new MarkerJob() {
-			@Override
-			public IStatus run(IProgressMonitor monitor) {
-				int start = jdtMarker.getAttribute(IMarker.CHAR_START, -1);
-				int end = jdtMarker.getAttribute(IMarker.CHAR_END, -1);
-				int length = end - start;
-				SourceMapping.@Nullable Origin origin = smap.map(start, length);
-				if (origin == null) return Status.OK_STATUS;
-
-				log("[==> Add marker " + jdtMarker + "]");
-				// Look for an existing marker at this origin
-				final String jdtMessage = 
-					jdtMarker.getAttribute(IMarker.MESSAGE, "<no message>");
-				final Forwarding fwd = new Forwarding(dolmenRes, origin, jdtMessage);
-				forwardedMarkers.put(jdtMarker, fwd);
-				@Nullable IMarker dolmenMarker = markersByOrigin.get(fwd);
-				// It may be that the marker has been deleted by the builder directly
-				// in which case we consider it as if it needed to be created
-				if (dolmenMarker != null && !dolmenMarker.exists()) {
-					dolmenMarker = null;
-					// we could remove(fwd) from ruleNamesByOrigin but this is going
-					// to be done below with a forced replacement
-				}
-				final Map<@Nullable String, Integer> rules;
-				if (dolmenMarker == null) {
-					// Forward the marker, record the origin
-					dolmenMarker = Marker.copyFromJDT(dolmenRes, jdtMarker, origin);
-					log("Created Dolmen marker " + dolmenMarker.getId() + " at " + fwd);
-					rules = new HashMap<>();
-					rules.put(origin.ruleName, 1);
-					ruleNamesByOrigin.put(fwd, rules);
-					markersByOrigin.put(fwd, dolmenMarker);
-				}
-				else {
-					// Extend the existing marker with the new origin
-					rules = Nulls.ok(ruleNamesByOrigin.get(fwd));
-					@Nullable Integer count = rules.get(origin.ruleName);
-					rules.put(origin.ruleName, count == null ? 1 : count + 1);
-				}
-				Marker.updateMessage(dolmenMarker, jdtMessage, rules);
-				log("[<== Add marker " + jdtMarker + "]");
-
-				return Status.OK_STATUS;
-			}
-		};
-	}
-	
-	private void forwardingsSanityCheck() {
-		for (Map.Entry<IMarker, Forwarding> entry : forwardedMarkers.entrySet()) {
-			IMarker jdtMarker = entry.getKey();
-			Forwarding fwd = entry.getValue();
-			if (!jdtMarker.exists())
-				logErr("JDT marker " + jdtMarker + " is registered to " + fwd + " but does not exist anymore");
-
-			@Nullable  Map<@Nullable String, Integer> rules = ruleNamesByOrigin.get(fwd);
-			@Nullable IMarker dolmenMarker = markersByOrigin.get(fwd);
-			if (rules == null)
-				logErr("Rules for " + fwd + " (associated to " + jdtMarker + ") are missing");
-			else {
-				rules.forEach((rule, count) -> {
-					if (count <= 0)
-						logErr("Count for rule " + Objects.toString(rule) + " is invalid: " + count);
-				});
-			}
-			if (dolmenMarker == null)
-				logErr("Dolmen marker " + fwd + " (associated to " + jdtMarker + ") is missing");
-			else {
-				if (!dolmenMarker.exists())
-					logErr("Dolmen marker " + fwd + " (associated to " + jdtMarker + ") does not exist anymore");
-			}
-		}
+		Log.log(Log.Level.WARNING, s + "\n");
 	}
 }
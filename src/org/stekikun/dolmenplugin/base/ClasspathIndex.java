@@ -0,0 +1,184 @@
+package org.stekikun.dolmenplugin.base;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.jdt.annotation.Nullable;
+import org.eclipse.jdt.core.IClasspathEntry;
+import org.eclipse.jdt.core.IJavaProject;
+import org.eclipse.jdt.core.JavaModelException;
+import org.eclipse.jdt.core.compiler.CharOperation;
+
+/**
+ * A snapshot of the source folders and output locations of
+ * a Java project, organized as a prefix tree of workspace paths.
+ * It lets the Dolmen {@link Builder} decide which folders must
+ * be visited and which files are on the project's classpath
+ * in time proportional to the depth of the resources, without
+ * querying the Java model for every resource.
+ * <p>
+ * The index is computed from the project's raw classpath once
+ * per build, see {@link #of(IJavaProject)}. It follows the same
+ * rules as {@link IJavaProject#isOnClasspath(IResource)} as far
+ * as source folders are concerned: a resource is on the classpath
+ * if it is in some source folder, and not excluded by the
+ * inclusion and exclusion patterns of the innermost such folder.
+ * Resources in output locations are never on the classpath.
+ *
+ * @author Stéphane Lescuyer
+ */
+final class ClasspathIndex {
+
+	/**
+	 * A source folder, with its inclusion and exclusion
+	 * patterns given as absolute workspace paths
+	 */
+	private static final class SourceRoot {
+		final char @Nullable [][] inclusions;
+		final char @Nullable [][] exclusions;
+
+		SourceRoot(IClasspathEntry entry) {
+			this.inclusions = patterns(entry.getPath(), entry.getInclusionPatterns());
+			this.exclusions = patterns(entry.getPath(), entry.getExclusionPatterns());
+		}
+
+		private static char @Nullable [][] patterns(IPath root, IPath @Nullable [] patterns) {
+			if (patterns == null || patterns.length == 0) return null;
+			char[][] res = new char[patterns.length][];
+			for (int i = 0; i < patterns.length; ++i) {
+				String pattern = root.append(patterns[i]).toString();
+				// As in JDT, a trailing slash stands for the whole subtree
+				if (patterns[i].hasTrailingSeparator()) pattern += "/**";
+				res[i] = pattern.toCharArray();
+			}
+			return res;
+		}
+
+		/**
+		 * @param path	a path inside this source folder
+		 * @param isFolder	whether {@code path} denotes a folder
+		 * @return whether the given path is excluded from this source
+		 * 	folder, following the rules of the JDT
+		 */
+		boolean isExcluded(String path, boolean isFolder) {
+			if (inclusions == null && exclusions == null) return false;
+			if (inclusions != null) {
+				boolean included = false;
+				for (char[] pattern : inclusions) {
+					// Folders are always traversed, inclusions
+					// are checked on the files they contain
+					if (isFolder || CharOperation.pathMatch(pattern, path.toCharArray(), true, '/')) {
+						included = true;
+						break;
+					}
+				}
+				if (!included) return true;
+			}
+			if (exclusions != null) {
+				char[] p = (isFolder ? path + "/*" : path).toCharArray();
+				for (char[] pattern : exclusions) {
+					if (CharOperation.pathMatch(pattern, p, true, '/'))
+						return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * A node in the prefix tree of paths
+	 */
+	private static final class Node {
+		final Map<String, Node> children = new HashMap<>(4);
+		// The source folder at this path, if any
+		@Nullable SourceRoot source = null;
+		// Whether this path is an output location
+		boolean output = false;
+
+		Node child(String segment) {
+			return children.computeIfAbsent(segment, s -> new Node());
+		}
+	}
+
+	private final Node root;
+
+	private ClasspathIndex() {
+		this.root = new Node();
+	}
+
+	private Node insert(IPath path) {
+		Node node = root;
+		for (int i = 0; i < path.segmentCount(); ++i)
+			node = node.child(path.segment(i));
+		return node;
+	}
+
+	/**
+	 * @param javaProject
+	 * @return the classpath index for the given project, computed
+	 * 	from its current raw classpath
+	 * @throws JavaModelException
+	 */
+	static ClasspathIndex of(IJavaProject javaProject) throws JavaModelException {
+		ClasspathIndex index = new ClasspathIndex();
+		index.insert(javaProject.getOutputLocation()).output = true;
+		for (IClasspathEntry entry : javaProject.getRawClasspath()) {
+			if (entry.getEntryKind() != IClasspathEntry.CPE_SOURCE) continue;
+			index.insert(entry.getPath()).source = new SourceRoot(entry);
+			@Nullable IPath output = entry.getOutputLocation();
+			if (output != null) index.insert(output).output = true;
+		}
+		return index;
+	}
+
+	/**
+	 * @param res	a folder or a project
+	 * @return whether the given container may contain resources
+	 * 	on the classpath, i.e. whether the builder must visit it
+	 */
+	boolean mustVisit(IResource res) {
+		return classify(res.getFullPath(), true) != Kind.OUTSIDE;
+	}
+
+	/**
+	 * @param file
+	 * @return whether the given file is on the classpath
+	 */
+	boolean isOnClasspath(IFile file) {
+		return classify(file.getFullPath(), false) == Kind.INSIDE;
+	}
+
+	private static enum Kind {
+		/** On the classpath */
+		INSIDE,
+		/** Not on the classpath, but may contain resources which are */
+		ABOVE,
+		/** Neither on the classpath nor containing resources which are */
+		OUTSIDE
+	}
+
+	private Kind classify(IPath path, boolean isFolder) {
+		@Nullable Node node = root;
+		@Nullable SourceRoot source = null;
+		for (int i = 0; i < path.segmentCount() && node != null; ++i) {
+			// node becomes null when there is no deeper 
+			// source folder or output location
+			node = node.children.get(path.segment(i));
+			if (node == null) break;
+			if (node.output && node.source == null)
+				return Kind.OUTSIDE;
+			if (node.source != null) source = node.source;
+		}
+		if (source == null)
+			// Only the ancestors of some source folder must be visited
+			return node != null && isFolder ? Kind.ABOVE : Kind.OUTSIDE;
+		if (source.isExcluded(path.toString(), isFolder))
+			// Excluded folders may still contain nested source folders
+			return node != null && isFolder && !node.children.isEmpty() ?
+				Kind.ABOVE : Kind.OUTSIDE;
+		return Kind.INSIDE;
+	}
+}
@@ -24,14 +24,17 @@ public final class Console implements IConsoleFactory {
 	
 	@Override
 	public void openConsole() {
-		findDolmenConsole();
+		ConsolePlugin.getDefault().getConsoleManager().showConsoleView(findDolmenConsole());
 	}
 
 	/**
+	 * <i>The console view is not brought to the front, so that
+	 *  logging to the console does not steal the focus.</i>
+	 *
 	 * @return the Dolmen console if any, or creates one and adds it
 	 * 	to the console manager
 	 */
-	public static DolmenConsole findDolmenConsole() {
+	public static synchronized DolmenConsole findDolmenConsole() {
 		IConsoleManager consoleManager = ConsolePlugin.getDefault().getConsoleManager();
 		IConsole[] consoles = consoleManager.getConsoles();
 		for (IConsole console : consoles)
@@ -40,7 +43,6 @@ public final class Console implements IConsoleFactory {
 		// Create one
 		DolmenConsole console = new DolmenConsole();
 		consoleManager.addConsoles( new IConsole[] { console } );
-		consoleManager.showConsoleView(console);
 		return console;
 	}
 	
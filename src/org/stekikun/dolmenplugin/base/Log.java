@@ -0,0 +1,201 @@
+package org.stekikun.dolmenplugin.base;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.eclipse.jdt.annotation.Nullable;
+import org.eclipse.ui.console.MessageConsoleStream;
+
+/**
+ * The plug-in-wide sink for the messages logged by the Dolmen
+ * builder and compilers, which end up in the {@linkplain Console
+ * Dolmen console}.
+ * <p>
+ * Logging a message only appends it to a lock-free queue; the messages
+ * are written to the console in batches by a background thread, through
+ * a single console stream which is kept for the lifetime of the console.
+ * Logging therefore never waits for the console or the UI thread, and
+ * never brings the console view to the front.
+ * <p>
+ * Messages below the {@linkplain BuildOptions#logLevel level} of the
+ * last build are discarded right away. The queue holds at most
+ * {@link BuildOptions#logCapacity} messages: when messages are logged
+ * faster than they can be displayed, the oldest ones are dropped and
+ * the number of dropped messages is reported in the console.
+ * <p>
+ * This class can be used concurrently.
+ *
+ * @author Stéphane Lescuyer
+ */
+public final class Log {
+
+	private Log() {
+		// Static utility only
+	}
+
+	/**
+	 * The levels of the logged messages, by increasing severity
+	 */
+	public static enum Level {
+		/** Messages which are only useful to debug the plug-in */
+		DEBUG,
+		/** The progression of the builder and compilers */
+		INFO,
+		/** Unexpected situations which the builder can recover from */
+		WARNING,
+		/** Failures of the builder */
+		ERROR;
+	}
+
+	private static volatile Level threshold = BuildOptions.DEFAULT.logLevel;
+	private static volatile int capacity = BuildOptions.DEFAULT.logCapacity;
+
+	/** The messages waiting to be displayed */
+	private static final Queue<String> queue = new ConcurrentLinkedQueue<>();
+	/** The number of messages in {@link #queue} */
+	private static final AtomicInteger size = new AtomicInteger(0);
+	/** The number of messages dropped since the last batch */
+	private static final AtomicInteger dropped = new AtomicInteger(0);
+	/** Whether the drainer is waiting for new messages */
+	private static final AtomicBoolean idle = new AtomicBoolean(false);
+
+	private static final Thread drainer = new Thread(Log::drain, "Dolmen console logger");
+	private static final AtomicBoolean started = new AtomicBoolean(false);
+
+	/**
+	 * Sets the level and capacity of the log, as given by
+	 * the options of the last build
+	 *
+	 * @param options
+	 */
+	static void configure(BuildOptions options) {
+		threshold = options.logLevel;
+		capacity = options.logCapacity;
+	}
+
+	/**
+	 * @param level
+	 * @return whether messages at the given level are logged
+	 */
+	public static boolean isEnabled(Level level) {
+		return level.compareTo(threshold) >= 0;
+	}
+
+	/**
+	 * Logs the given message, which should end with a new line
+	 * if it is to be displayed on its own line
+	 *
+	 * @param level
+	 * @param message
+	 */
+	public static void log(Level level, String message) {
+		if (!isEnabled(level) || message.isEmpty()) return;
+		queue.offer(level == Level.INFO ? message : "[" + level + "] " + message);
+		// Drop the oldest message rather than blocking
+		if (size.incrementAndGet() > capacity && queue.poll() != null) {
+			size.decrementAndGet();
+			dropped.incrementAndGet();
+		}
+		if (started.compareAndSet(false, true)) {
+			drainer.setDaemon(true);
+			drainer.start();
+		}
+		else if (idle.compareAndSet(true, false))
+			LockSupport.unpark(drainer);
+	}
+
+	/**
+	 * @param level
+	 * @return a stream which logs every line printed to it at the
+	 * 	given level. The stream buffers incomplete lines until they are
+	 * 	completed or the stream is flushed, and must not be shared by
+	 * 	concurrent tasks whose output should not be interleaved.
+	 */
+	public static PrintStream stream(Level level) {
+		return new PrintStream(new LineStream(level), true);
+	}
+
+	/**
+	 * The output stream underlying the streams returned by {@link #stream}
+	 */
+	private static final class LineStream extends OutputStream {
+		private final Level level;
+		private final ByteArrayOutputStream line;
+
+		LineStream(Level level) {
+			this.level = level;
+			this.line = new ByteArrayOutputStream(128);
+		}
+
+		@Override
+		public void write(int b) {
+			line.write(b);
+			if (b == '\n') flush();
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			line.write(b, off, len);
+			for (int i = off + len - 1; i >= off; --i)
+				if (b[i] == '\n') {
+					flush();
+					return;
+				}
+		}
+
+		@Override
+		public void flush() {
+			if (line.size() == 0) return;
+			// Same encoding as the print stream over this stream
+			log(level, new String(line.toByteArray(), Charset.defaultCharset()));
+			line.reset();
+		}
+	}
+
+	/**
+	 * The loop of the {@link #drainer} thread, which writes the
+	 * queued messages to the Dolmen console in batches
+	 */
+	private static void drain() {
+		@Nullable MessageConsoleStream out = null;
+		final StringBuilder batch = new StringBuilder();
+		while (true) {
+			@Nullable String message = queue.poll();
+			if (message == null) {
+				// Check the queue again once idle, so that no wake-up is lost
+				idle.set(true);
+				if (queue.isEmpty())
+					LockSupport.park();
+				idle.set(false);
+				continue;
+			}
+			batch.setLength(0);
+			do {
+				size.decrementAndGet();
+				batch.append(message);
+			} while ((message = queue.poll()) != null);
+			final int lost = dropped.getAndSet(0);
+			if (lost > 0)
+				batch.insert(0, "[" + lost + " message(s) dropped]\n");
+			try {
+				if (out == null)
+					out = Console.findDolmenConsole().newMessageStream();
+				out.write(batch.toString());
+			} catch (IOException e) {
+				// The console was closed, a new one is used for the next batch
+				out = null;
+			} catch (RuntimeException e) {
+				// The console plug-in is not available, e.g. during shutdown
+				out = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,50 @@
+package org.stekikun.dolmenplugin.base;
+
+import org.stekikun.dolmen.codegen.SourceMapping;
+
+/**
+ * Utility functions about the {@linkplain SourceMapping source mappings}
+ * of the classes generated by Dolmen
+ * <p>
+ * <b>Composite</b> mappings are mappings stemming from the instantiation
+ * of parameterized rules. Their structure, and in particular their
+ * extent, is private in Dolmen, so they cannot be saved, transmitted
+ * or relocated by the plug-in; only the fact that a mapping is
+ * composite can be observed.
+ * <p>
+ * <i>This class must only depend on the Dolmen runtime, as it is
+ *  also used in the worker processes.
+ * </i>
+ *
+ * @author Stéphane Lescuyer
+ */
+public final class Mappings {
+
+	private Mappings() {
+		// Static utility only
+	}
+
+	/**
+	 * @param mapping
+	 * @return whether {@code mapping} is composite
+	 */
+	public static boolean isComposite(SourceMapping.Mapping mapping) {
+		// Composite mappings are only identified as such when printed,
+		// so this is the one place to update if Dolmen's output changes
+		return mapping.toString().contains(", composite");
+	}
+
+	/**
+	 * @param smap
+	 * @return whether {@code smap} contains no composite mappings,
+	 * 	in which case it can be saved and restored faithfully
+	 */
+	public static boolean isComplete(SourceMapping smap) {
+		boolean complete[] = { true };
+		smap.forEach(mapping -> {
+			if (isComposite(mapping))
+				complete[0] = false;
+		});
+		return complete[0];
+	}
+}
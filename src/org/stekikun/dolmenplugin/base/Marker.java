@@ -1,10 +1,15 @@
 package org.stekikun.dolmenplugin.base;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.eclipse.core.resources.IFile;
 import org.eclipse.core.resources.IMarker;
 import org.eclipse.core.resources.IResource;
+import org.eclipse.core.resources.IWorkspace;
+import org.eclipse.core.resources.IWorkspaceRunnable;
 import org.eclipse.core.runtime.CoreException;
 import org.eclipse.jdt.annotation.Nullable;
 import org.stekikun.dolmen.codegen.SourceMapping;
@@ -75,16 +80,32 @@ public final class Marker {
 			int line, int start, int end) {
 		try {
 			IMarker report = res.createMarker(Marker.ID);
-			report.setAttribute(IMarker.SOURCE_ID, DOLMEN_SOURCE_ID);
-			report.setAttribute(IMarker.MESSAGE, message);
-			report.setAttribute(IMarker.SEVERITY, severity);
-			report.setAttribute(IMarker.LINE_NUMBER, line);
-			report.setAttribute(IMarker.CHAR_START, start);
-			report.setAttribute(IMarker.CHAR_END, end);
+			report.setAttributes(attributes(message, severity, line, start, end));
 		} catch (CoreException e1) {
 			e1.printStackTrace();
 		}
 	}
+	
+	/**
+	 * @param message
+	 * @param severity
+	 * @param line
+	 * @param start
+	 * @param end
+	 * @return the attributes of a Dolmen marker with the given
+	 * 	message, severity and position
+	 */
+	private static Map<String, Object> attributes(String message, int severity,
+			int line, int start, int end) {
+		Map<String, Object> attributes = new HashMap<>(8);
+		attributes.put(IMarker.SOURCE_ID, DOLMEN_SOURCE_ID);
+		attributes.put(IMarker.MESSAGE, message);
+		attributes.put(IMarker.SEVERITY, severity);
+		attributes.put(IMarker.LINE_NUMBER, line);
+		attributes.put(IMarker.CHAR_START, start);
+		attributes.put(IMarker.CHAR_END, end);
+		return attributes;
+	}
 		
 	/**
 	 * Same as {@link #add(IResource, String, int, int, int, int)} but
@@ -121,26 +142,162 @@ public final class Marker {
 	 * @param report
 	 */
 	public static void add(IResource res, IReport report) {
+		try {
+			IMarker marker = res.createMarker(Marker.ID);
+			marker.setAttributes(attributes(report));
+		} catch (CoreException e1) {
+			e1.printStackTrace();
+		}
+	}
+	
+	/**
+	 * @param report
+	 * @return the attributes of a Dolmen marker describing {@code report}
+	 */
+	private static Map<String, Object> attributes(IReport report) {
 		int sev = IMarker.SEVERITY_ERROR;
 		switch (report.getSeverity()) {
 		case ERROR: sev = IMarker.SEVERITY_ERROR; break;
 		case WARNING: sev = IMarker.SEVERITY_WARNING; break;
 		case LOG: sev = IMarker.SEVERITY_INFO; break;
 		}
-		
-		add(res, report.getMessage(), sev,
+		return attributes(report.getMessage(), sev,
 			report.getLine(), report.getOffset(), report.getOffset() + report.getLength());
 	}
 	
 	/**
 	 * Adds a Dolmen marker to the given resource {@code res} for
-	 * each of the given {@code reports}
+	 * each of the given {@code reports}. All markers are created
+	 * in a single workspace operation, so that only one resource
+	 * delta is broadcast.
+	 * 
 	 * @param res
 	 * @param reports
 	 */
 	public static void addAll(IResource res, Iterable<? extends IReport> reports) {
-		for (IReport report : reports)
-			add(res, report);
+		if (!reports.iterator().hasNext()) return;
+		run(res, monitor -> {
+			for (IReport report : reports)
+				res.createMarker(Marker.ID).setAttributes(attributes(report));
+		});
+	}
+	
+	/**
+	 * Reconciles the Dolmen markers associated with the given resource
+	 * with the given {@code reports}: markers which correspond to some
+	 * report, i.e. with the same severity, message and range, are kept
+	 * as is, the others are deleted, and markers are created for the
+	 * remaining reports. When the reports have not changed, the
+	 * resource's markers are left untouched and no delta is broadcast.
+	 * Otherwise, all changes are performed in a single workspace operation.
+	 * <p>
+	 * Markers which have been {@linkplain #copyFromJDT copied from the JDT}
+	 * are not affected: they are handled by the {@link MarkerForwarder}.
+	 * 
+	 * @param res
+	 * @param reports
+	 */
+	public static void reconcile(IResource res, Iterable<? extends IReport> reports) {
+		final IMarker[] markers;
+		try {
+			markers = res.findMarkers(Marker.ID, false, IResource.DEPTH_ZERO);
+		} catch (CoreException e) {
+			e.printStackTrace();
+			return;
+		}
+		// Index the existing markers which stem from Dolmen reports
+		Map<ReportKey, List<IMarker>> existing = new HashMap<>(markers.length);
+		for (IMarker marker : markers) {
+			if (!DOLMEN_SOURCE_ID.equals(marker.getAttribute(IMarker.SOURCE_ID, null)))
+				continue;
+			existing.computeIfAbsent(new ReportKey(marker), k -> new ArrayList<>(1))
+				.add(marker);
+		}
+		// Match them against the new reports
+		List<Map<String, Object>> added = new ArrayList<>();
+		for (IReport report : reports) {
+			Map<String, Object> attributes = attributes(report);
+			@Nullable List<IMarker> same = existing.get(new ReportKey(attributes));
+			if (same != null && !same.isEmpty())
+				same.remove(same.size() - 1);
+			else
+				added.add(attributes);
+		}
+		List<IMarker> removed = new ArrayList<>();
+		existing.values().forEach(removed::addAll);
+		if (added.isEmpty() && removed.isEmpty()) return;
+		
+		run(res, monitor -> {
+			if (!removed.isEmpty())
+				res.getWorkspace().deleteMarkers(removed.toArray(new IMarker[removed.size()]));
+			for (Map<String, Object> attributes : added)
+				res.createMarker(Marker.ID).setAttributes(attributes);
+		});
+	}
+	
+	/**
+	 * The characteristics of a Dolmen report marker which are
+	 * used to decide whether a marker matches some report, 
+	 * see {@link Marker#reconcile(IResource, Iterable)}
+	 * 
+	 * @author Stéphane Lescuyer
+	 */
+	private static final class ReportKey {
+		final int severity;
+		final String message;
+		final int start;
+		final int end;
+		
+		ReportKey(IMarker marker) {
+			this.severity = marker.getAttribute(IMarker.SEVERITY, -1);
+			this.message = marker.getAttribute(IMarker.MESSAGE, "");
+			this.start = marker.getAttribute(IMarker.CHAR_START, -1);
+			this.end = marker.getAttribute(IMarker.CHAR_END, -1);
+		}
+		
+		ReportKey(Map<String, Object> attributes) {
+			this.severity = (Integer) attributes.get(IMarker.SEVERITY);
+			this.message = (String) attributes.get(IMarker.MESSAGE);
+			this.start = (Integer) attributes.get(IMarker.CHAR_START);
+			this.end = (Integer) attributes.get(IMarker.CHAR_END);
+		}
+		
+		@Override
+		public int hashCode() {
+			int result = severity;
+			result = 31 * result + message.hashCode();
+			result = 31 * result + start;
+			result = 31 * result + end;
+			return result;
+		}
+		
+		@Override
+		public boolean equals(@Nullable Object o) {
+			if (this == o) return true;
+			if (!(o instanceof ReportKey)) return false;
+			ReportKey key = (ReportKey) o;
+			return severity == key.severity && start == key.start
+				&& end == key.end && message.equals(key.message);
+		}
+	}
+	
+	/**
+	 * Runs the given marker operations on {@code res} as a single
+	 * workspace operation, holding the rule for modifying markers on
+	 * {@code res}. Nested in another workspace operation, the changes 
+	 * are simply batched with the enclosing operation's.
+	 * 
+	 * @param res
+	 * @param runnable
+	 */
+	private static void run(IResource res, IWorkspaceRunnable runnable) {
+		final IWorkspace workspace = res.getWorkspace();
+		try {
+			workspace.run(runnable, workspace.getRuleFactory().markerRule(res),
+				IWorkspace.AVOID_UPDATE, null);
+		} catch (CoreException e) {
+			e.printStackTrace();
+		}
 	}
 
 	private static void addMapping(IFile res, SourceMapping.Mapping mapping) {
@@ -174,18 +331,13 @@ public final class Marker {
 	public static IMarker copyFromJDT(IResource res, IMarker jdtMarker,
 			SourceMapping.Origin origin) {
 		try {
-			IMarker jdtProblem = res.createMarker(Marker.ID);
-			jdtMarker.getAttributes().forEach((s, o) -> {
-				try {
-					jdtProblem.setAttribute(s, o);
-				} catch (CoreException e) {
-					e.printStackTrace();
-				}
-			});
+			Map<String, Object> attributes = new HashMap<>(jdtMarker.getAttributes());
 			// Override the positional and source attributes
-			jdtProblem.setAttribute(IMarker.SOURCE_ID, JDT_SOURCE_ID);
-			jdtProblem.setAttribute(IMarker.CHAR_START, origin.offset);
-			jdtProblem.setAttribute(IMarker.CHAR_END, origin.offset + origin.length);
+			attributes.put(IMarker.SOURCE_ID, JDT_SOURCE_ID);
+			attributes.put(IMarker.CHAR_START, origin.offset);
+			attributes.put(IMarker.CHAR_END, origin.offset + origin.length);
+			IMarker jdtProblem = res.createMarker(Marker.ID);
+			jdtProblem.setAttributes(attributes);
 			return jdtProblem;
 		} catch (CoreException e1) {
 			e1.printStackTrace();
@@ -244,8 +396,9 @@ public final class Marker {
 		
 		// Update the message attribute
 		try {
-			dolmenMarker.setAttribute(IMarker.MESSAGE, msg.toString());
-			dolmenMarker.setAttribute(DOLMEN_MARKER_HTML_MESSAGE, html.toString());
+			dolmenMarker.setAttributes(
+				new String[] { IMarker.MESSAGE, DOLMEN_MARKER_HTML_MESSAGE },
+				new Object[] { msg.toString(), html.toString() });
 		} catch (CoreException e) {
 			e.printStackTrace();
 			return;
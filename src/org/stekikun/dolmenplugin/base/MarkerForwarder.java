@@ -0,0 +1,821 @@
+package org.stekikun.dolmenplugin.base;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.IMarker;
+import org.eclipse.core.resources.IMarkerDelta;
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.resources.IResourceChangeEvent;
+import org.eclipse.core.resources.IResourceChangeListener;
+import org.eclipse.core.resources.IResourceDelta;
+import org.eclipse.core.resources.ResourcesPlugin;
+import org.eclipse.core.resources.WorkspaceJob;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.IJobFunction;
+import org.eclipse.core.runtime.jobs.ISchedulingRule;
+import org.eclipse.core.runtime.jobs.Job;
+import org.eclipse.jdt.annotation.Nullable;
+import org.eclipse.jdt.core.IJavaModelMarker;
+import org.stekikun.dolmen.codegen.SourceMapping;
+import org.stekikun.dolmen.common.Nulls;
+import org.stekikun.dolmenplugin.Activator;
+
+/**
+ * The marker forwarder is a workspace-wide service, owned by the
+ * plug-in's {@link Activator}, which keeps track of all the resources
+ * generated by the Dolmen {@link Builder}s of the various projects,
+ * and listens to the JDT problem markers in these resources in
+ * order to copy them back into the Dolmen descriptions they were
+ * generated from, wherever their position belongs to a
+ * {@linkplain SourceMapping source mapping}.
+ * <p>
+ * A single forwarder is registered as a resource change listener,
+ * whatever the number of Dolmen projects in the workspace, and
+ * every resource change event is handled in one pass.
+ * <p>
+ * Changes to JDT markers are not handled right away: they are
+ * queued and merged per marker, and handled all at once by a single
+ * job when no new changes have been received for a short while.
+ * This avoids scheduling many small jobs during JDT builds.
+ * <p>
+ * The forwarding tables are only accessed by the jobs which copy
+ * the markers, and which are serialized via {@link #FORWARDING_RULE}.
+ * The index of generated resources can be read concurrently and
+ * is updated by the builders.
+ * 
+ * @author Stéphane Lescuyer
+ */
+public final class MarkerForwarder implements IResourceChangeListener {
+
+	/**
+	 * A scheduling rule which is part of the rule of every job
+	 * accessing the forwarding tables, ensuring these jobs
+	 * never run concurrently
+	 */
+	private static final ISchedulingRule FORWARDING_RULE = new ISchedulingRule() {
+		@Override
+		public boolean contains(ISchedulingRule rule) {
+			return rule == this;
+		}
+		
+		@Override
+		public boolean isConflicting(ISchedulingRule rule) {
+			return rule == this;
+		}
+	};
+	
+	/**
+	 * The various resources which are generated, associated to 
+	 * the Dolmen resource that they have been generated from and
+	 * their known source mapping, for all projects
+	 */
+	private final Map<IFile, Map<IFile, SourceMapping>> generatedMap;
+	
+	/**
+	 * The reverse index of {@link #generatedMap}, which associates
+	 * every generated resource to the Dolmen resource it has been
+	 * generated from and its source mapping. It is kept in sync
+	 * with {@link #generatedMap} by {@link #add} and {@link #remove}.
+	 */
+	private final Map<IFile, GeneratedSource> generatedIndex;
+	
+	/**
+	 * The projects whose saved state has been loaded already,
+	 * see {@link #loadState(IProject)}. Generated resources 
+	 * can only belong to these projects.
+	 */
+	private final Set<IProject> loadedProjects;
+	
+	/**
+	 * The projects for which {@link #generatedMap} is known to hold
+	 * all the resources generated by Dolmen, i.e. whose saved state
+	 * could be loaded or which have been cleaned since, see
+	 * {@link #isIndexed(IProject)}
+	 */
+	private final Set<IProject> indexedProjects;
+	
+	/**
+	 * The projects whose state has changed since it
+	 * was last saved, see {@link #saveState(IProject)}
+	 */
+	private final Set<IProject> dirtyProjects;
+	
+	/**
+	 * The descriptions whose generated resources were only partially
+	 * restored from a saved state, and which must be compiled again,
+	 * see {@link #takePartial(IProject)}
+	 */
+	private final Set<IFile> partialDescriptions;
+	
+	/**
+	 * The forwarder listens to all marker changes from the JDT
+	 * in resources generated by Dolmen and copies them back into the
+	 * Dolmen source file if it belongs to a source mapping. We keep
+	 * the map from JDT markers to the computed origin in the source
+	 * mapping.
+	 */
+	private final Map<IMarker, Forwarding> forwardedMarkers;
+	
+	/**
+	 * For every origin corresponding to a forwarded marker from a 
+	 * generated JDT resource, we keep a single Dolmen marker for
+	 * all the origins that represent the same region. These are
+	 * given by {@link #markersByOrigin}. The set of different
+	 * rule names for which some origin has been reported is
+	 * recorded in {@link #ruleNamesByOrigin}, with the multiplicity
+	 * with which any single rule name appears. These two maps rely
+	 * on the fact that rule names are ignored when comparing origins.
+	 */
+	private final Map<Forwarding,
+		Map<@Nullable String, Integer>> ruleNamesByOrigin;
+	private final Map<Forwarding, IMarker> markersByOrigin;
+	
+	// Serializes the writing of state files
+	private final Object saveLock = new Object();
+	
+	public MarkerForwarder() {
+		this.generatedMap = new ConcurrentHashMap<>();
+		this.generatedIndex = new ConcurrentHashMap<>();
+		this.loadedProjects = ConcurrentHashMap.newKeySet();
+		this.indexedProjects = ConcurrentHashMap.newKeySet();
+		this.dirtyProjects = ConcurrentHashMap.newKeySet();
+		this.partialDescriptions = ConcurrentHashMap.newKeySet();
+		this.forwardedMarkers = new ConcurrentHashMap<>();
+		this.ruleNamesByOrigin = new HashMap<>();
+		this.markersByOrigin = new ConcurrentHashMap<>();
+	}
+	
+	/**
+	 * Starts listening to the changes of JDT problem markers in the workspace
+	 */
+	public void start() {
+		ResourcesPlugin.getWorkspace()
+			.addResourceChangeListener(this, IResourceChangeEvent.POST_CHANGE);
+	}
+	
+	/**
+	 * Stops listening to the changes of JDT problem markers in the
+	 * workspace, and saves the state of all projects which need it
+	 */
+	public void stop() {
+		ResourcesPlugin.getWorkspace().removeResourceChangeListener(this);
+		flushJob.cancel();
+		for (IProject project : dirtyProjects.toArray(new IProject[0]))
+			saveState(project);
+	}
+
+	/**
+	 * Register that {@code generated} has been generated
+	 * for the Dolmen file {@code dolmen} with the associated
+	 * source mappings
+	 * 
+	 * @param dolmen
+	 * @param generated
+	 * @param smap
+	 */
+	synchronized void add(IFile dolmen, IFile generated, SourceMapping smap) {
+		generatedMap.computeIfAbsent(dolmen, k -> new ConcurrentHashMap<>())
+			.put(generated, smap);
+		@Nullable GeneratedSource prev =
+			generatedIndex.put(generated, new GeneratedSource(dolmen, smap));
+		if (prev != null && !prev.dolmenResource.equals(dolmen)) {
+			// The resource was generated from another Dolmen resource before
+			Map<IFile, SourceMapping> prevGens = Nulls.ok(generatedMap.get(prev.dolmenResource));
+			prevGens.remove(generated);
+			if (prevGens.isEmpty()) generatedMap.remove(prev.dolmenResource);
+		}
+		dirtyProjects.add(dolmen.getProject());
+	}
+	
+	/**
+	 * Registers that the resource {@code ifile} has been
+	 * removed
+	 * 
+	 * @param ifile
+	 */
+	synchronized void remove(IFile ifile) {
+		// ifile may be a Dolmen resource...
+		@Nullable Map<IFile, SourceMapping> gens = generatedMap.remove(ifile);
+		if (gens != null) {
+			for (IFile gen : gens.keySet())
+				generatedIndex.remove(gen);
+		}
+		// ...or a generated one
+		@Nullable GeneratedSource source = generatedIndex.remove(ifile);
+		if (source != null) {
+			@Nullable Map<IFile, SourceMapping> srcGens =
+				generatedMap.get(source.dolmenResource);
+			if (srcGens != null) srcGens.remove(ifile);
+		}
+		dirtyProjects.add(ifile.getProject());
+	}
+	
+	/**
+	 * @param dolmen
+	 * @return the resources generated from the Dolmen 
+	 * 	resource {@code dolmen}, with their source mappings
+	 */
+	Map<IFile, SourceMapping> generatedFrom(IFile dolmen) {
+		@Nullable Map<IFile, SourceMapping> gens = generatedMap.get(dolmen);
+		if (gens == null) return Collections.emptyMap();
+		return Collections.unmodifiableMap(gens);
+	}
+	
+	/**
+	 * @param project
+	 * @return the resources generated by Dolmen in {@code project}
+	 * 	which are currently known
+	 * @see #isIndexed(IProject)
+	 */
+	List<IFile> generatedIn(IProject project) {
+		final List<IFile> res = new ArrayList<>();
+		for (IFile gen : generatedIndex.keySet()) {
+			if (project.equals(gen.getProject()))
+				res.add(gen);
+		}
+		return res;
+	}
+	
+	/**
+	 * @param project
+	 * @return whether all the resources generated by Dolmen in
+	 * 	{@code project} are known, in which case they are returned
+	 * 	by {@link #generatedIn(IProject)}; this is not the case if the
+	 * 	project's state could not be loaded, e.g. if it was built with
+	 * 	an older version of the plug-in
+	 */
+	boolean isIndexed(IProject project) {
+		return indexedProjects.contains(project);
+	}
+	
+	/**
+	 * Records that all the resources generated by Dolmen in
+	 * {@code project} are known, typically after a clean build
+	 * 
+	 * @param project
+	 */
+	void indexed(IProject project) {
+		indexedProjects.add(project);
+	}
+	
+	/**
+	 * Loads the state saved for the given project in a previous
+	 * session, if any and if it has not been loaded already. This
+	 * allows forwarding JDT problems from generated resources to their
+	 * Dolmen descriptions without having to rebuild the project first.
+	 * <p>
+	 * The generated resources are registered right away, whereas
+	 * the forwarding tables are restored in a forwarding job.
+	 * Generated resources whose source mapping could only be partially
+	 * saved are marked as stale, and the descriptions they were
+	 * generated from are left for the builder to {@linkplain
+	 * #takePartial(IProject) compile again}.
+	 * 
+	 * @see BuildState
+	 * @param project
+	 */
+	synchronized void loadState(IProject project) {
+		if (!loadedProjects.add(project)) return;
+		@Nullable BuildState state = BuildState.load(project);
+		if (state == null) return;
+		indexedProjects.add(project);
+		
+		final boolean dirty = dirtyProjects.contains(project);
+		state.generatedMap.forEach((dolmen, gens) -> 
+			gens.forEach((gen, smap) -> {
+				if (!generatedIndex.containsKey(gen))
+					add(dolmen, gen, smap);
+			}));
+		if (!dirty) dirtyProjects.remove(project);
+		for (IFile dolmen : state.partialDescriptions) {
+			final @Nullable Map<IFile, SourceMapping> gens = state.generatedMap.get(dolmen);
+			if (gens == null) continue;
+			try {
+				// The recorded digest is replaced so that the
+				// resources are not considered up-to-date anymore
+				for (IFile gen : gens.keySet())
+					gen.setPersistentProperty(Utils.DIGEST_PROPERTY, Utils.PARTIAL_DIGEST);
+				partialDescriptions.add(dolmen);
+			} catch (CoreException e) {
+				e.printStackTrace();
+			}
+		}
+		
+		if (state.forwardedMarkers.isEmpty()) return;
+		Job job = new Job("Restoring Dolmen forwarded markers") {
+			@Override
+			protected IStatus run(IProgressMonitor monitor) {
+				state.forwardedMarkers.forEach((jdtMarker, fwd) -> {
+					if (forwardedMarkers.putIfAbsent(jdtMarker, fwd) != null) return;
+					markersByOrigin.putIfAbsent(fwd, Nulls.ok(state.markersByOrigin.get(fwd)));
+					ruleNamesByOrigin.computeIfAbsent(fwd, k -> new HashMap<>())
+						.merge(fwd.origin.ruleName, 1, Integer::sum);
+				});
+				return Status.OK_STATUS;
+			}
+		};
+		job.setSystem(true);
+		job.setRule(FORWARDING_RULE);
+		job.schedule();
+		log("Loaded builder state for " + project);
+	}
+	
+	/**
+	 * @param project
+	 * @return the descriptions of {@code project} whose generated
+	 * 	resources were only partially restored from the saved state,
+	 * 	and which must be compiled again in order to forward all
+	 * 	the JDT problems of these resources; they are only returned
+	 * 	once
+	 */
+	List<IFile> takePartial(IProject project) {
+		final List<IFile> res = new ArrayList<>();
+		for (IFile dolmen : partialDescriptions) {
+			if (project.equals(dolmen.getProject()) && partialDescriptions.remove(dolmen))
+				res.add(dolmen);
+		}
+		return res;
+	}
+	
+	/**
+	 * Saves the state for the given project, if it has
+	 * changed since the last time it was saved
+	 * 
+	 * @see BuildState
+	 * @param project
+	 */
+	void saveState(IProject project) {
+		synchronized (saveLock) {
+			if (!dirtyProjects.remove(project)) return;
+			if (!project.isAccessible()) return;
+			
+			final Map<IFile, Map<IFile, SourceMapping>> gens = new HashMap<>();
+			generatedMap.forEach((dolmen, map) -> {
+				if (project.equals(dolmen.getProject()))
+					gens.put(dolmen, map);
+			});
+			final Map<IMarker, Forwarding> forwarded = new HashMap<>();
+			forwardedMarkers.forEach((jdtMarker, fwd) -> {
+				if (project.equals(fwd.dolmenResource.getProject()))
+					forwarded.put(jdtMarker, fwd);
+			});
+			final Map<Forwarding, IMarker> markers = new HashMap<>();
+			markersByOrigin.forEach((fwd, marker) -> {
+				if (project.equals(fwd.dolmenResource.getProject()))
+					markers.put(fwd, marker);
+			});
+			try {
+				BuildState.save(project, gens, forwarded, markers);
+			} catch (IOException e) {
+				e.printStackTrace();
+				dirtyProjects.add(project);
+			}
+		}
+	}
+	
+	@Override
+	public void resourceChanged(IResourceChangeEvent event) {
+		if (generatedIndex.isEmpty()) return;
+		IMarkerDelta[] deltas = 
+			event.findMarkerDeltas(IJavaModelMarker.JAVA_MODEL_PROBLEM_MARKER, true);
+		if (deltas.length == 0) return;
+		
+		boolean enqueued = false;
+		for (IMarkerDelta delta : deltas) {
+			// Find out if delta is associated to resource
+			// generated by Dolmen
+			IResource res = delta.getResource();
+			// Generated resources only belong to projects built by Dolmen
+			if (!loadedProjects.contains(res.getProject())) continue;
+			@Nullable GeneratedSource source = generatedIndex.get(res);
+			if (source == null) continue;
+			final IFile dolmenRes = source.dolmenResource;
+			final SourceMapping smap = source.smap;
+			
+			// Handle the marker
+			IMarker jdtMarker = delta.getMarker();
+			switch (delta.getKind()) {
+			case IResourceDelta.ADDED: {
+				log("ADDED marker " + delta.getId() + " on " + delta.getResource());
+				enqueueAddition(jdtMarker, addMarker(jdtMarker, dolmenRes, smap));
+				break;
+			}
+			case IResourceDelta.CHANGED: {
+				log("CHANGED marker " + delta.getId() + " on " + delta.getResource());
+				enqueueAddition(jdtMarker, addMarker(jdtMarker, dolmenRes, smap));
+				break;
+			}
+			case IResourceDelta.REMOVED: {
+				log("REMOVED marker " + delta.getId() + " on " + delta.getResource());
+				enqueueRemoval(jdtMarker);
+				break;
+			}
+			default:
+				continue;
+			}
+			enqueued = true;
+		}
+		
+		if (!enqueued) return;
+		lastEventTime = System.currentTimeMillis();
+		flushJob.schedule(QUIET_PERIOD);
+	}
+	
+	/**
+	 * The changes to forwarded JDT markers which have not been
+	 * handled yet by the {@link #flushJob}, describes what must be
+	 * done for a given JDT marker. Several changes to the same 
+	 * marker are merged in a single pending change.
+	 * 
+	 * @author Stéphane Lescuyer
+	 */
+	private static final class PendingChange {
+		/**
+		 * Whether the marker must be removed, or whether its
+		 * previous forwarding must be removed before the new one
+		 * is added
+		 */
+		boolean removed = false;
+		/**
+		 * The job which forwards the last version of the
+		 * marker, or {@code null} if it was removed
+		 */
+		@Nullable MarkerJob addition = null;
+	}
+	
+	/**
+	 * The changes to forwarded JDT markers waiting to be handled,
+	 * in the order in which they were first received. Access to
+	 * this map must be synchronized on the map itself.
+	 */
+	private final Map<IMarker, PendingChange> pendingChanges = new LinkedHashMap<>();
+	
+	/**
+	 * How long the {@link #flushJob} waits after the last JDT marker 
+	 * change before handling the pending changes, in milliseconds
+	 */
+	private static final long QUIET_PERIOD = 250;
+	
+	/**
+	 * The time at which the last JDT marker change was received
+	 */
+	private volatile long lastEventTime = 0;
+	
+	// Counters describing the activity of the forwarder
+	private final AtomicLong markerEvents = new AtomicLong();
+	private final AtomicLong cancelledEvents = new AtomicLong();
+	private final AtomicLong flushes = new AtomicLong();
+	
+	/**
+	 * @return the number of JDT marker changes received
+	 * 	by the forwarder so far
+	 */
+	public long getMarkerEventCount() {
+		return markerEvents.get();
+	}
+	
+	/**
+	 * @return the number of JDT marker changes which were merged
+	 * 	with other pending changes, or which cancelled one another,
+	 * 	and therefore did not need to be handled on their own
+	 */
+	public long getCoalescedEventCount() {
+		return cancelledEvents.get();
+	}
+	
+	/**
+	 * @return the number of times the pending JDT marker
+	 * 	changes have been handled so far
+	 */
+	public long getFlushCount() {
+		return flushes.get();
+	}
+	
+	/**
+	 * Records that the JDT marker {@code jdtMarker} has been added
+	 * or changed, and must be forwarded using the given {@code job}
+	 * 
+	 * @param jdtMarker
+	 * @param job
+	 */
+	private void enqueueAddition(IMarker jdtMarker, MarkerJob job) {
+		markerEvents.incrementAndGet();
+		synchronized (pendingChanges) {
+			PendingChange change = pendingChanges.get(jdtMarker);
+			if (change == null) {
+				change = new PendingChange();
+				pendingChanges.put(jdtMarker, change);
+			}
+			else
+				cancelledEvents.incrementAndGet();
+			change.addition = job;
+		}
+	}
+	
+	/**
+	 * Records that the JDT marker {@code jdtMarker} has been removed.
+	 * If it was only added since the pending changes were last handled,
+	 * both changes cancel each other.
+	 * 
+	 * @param jdtMarker
+	 */
+	private void enqueueRemoval(IMarker jdtMarker) {
+		markerEvents.incrementAndGet();
+		synchronized (pendingChanges) {
+			@Nullable PendingChange change = pendingChanges.get(jdtMarker);
+			if (change == null) {
+				change = new PendingChange();
+				pendingChanges.put(jdtMarker, change);
+			}
+			else {
+				cancelledEvents.incrementAndGet();
+				if (!change.removed && !forwardedMarkers.containsKey(jdtMarker)) {
+					// The marker was never forwarded, nothing to do
+					pendingChanges.remove(jdtMarker);
+					cancelledEvents.incrementAndGet();
+					return;
+				}
+			}
+			change.removed = true;
+			change.addition = null;
+		}
+	}
+	
+	/**
+	 * The single job which handles the pending changes to JDT markers,
+	 * once no new changes have been received for {@link #QUIET_PERIOD}
+	 */
+	private final WorkspaceJob flushJob = new WorkspaceJob("Copying JDT markers to Dolmen") {
+		{
+			setSystem(true);
+			setRule(FORWARDING_RULE);
+		}
+		
+		@Override
+		public IStatus runInWorkspace(IProgressMonitor monitor) throws CoreException {
+			long quiet = System.currentTimeMillis() - lastEventTime;
+			if (quiet < QUIET_PERIOD) {
+				// Wait for the changes to settle down
+				schedule(QUIET_PERIOD - quiet);
+				return Status.OK_STATUS;
+			}
+			
+			final Map<IMarker, PendingChange> changes;
+			synchronized (pendingChanges) {
+				if (pendingChanges.isEmpty()) return Status.OK_STATUS;
+				changes = new LinkedHashMap<>(pendingChanges);
+				pendingChanges.clear();
+			}
+			flushes.incrementAndGet();
+			log("Handling " + changes.size() + " JDT marker changes (" 
+				+ markerEvents.get() + " events, " + cancelledEvents.get() + " coalesced, "
+				+ flushes.get() + " flushes)");
+			
+			try (Trace.Span span = Trace.begin("forwarder", "Forward JDT markers", null)) {
+				// Do the deletions first, and the changes/additions next
+				changes.forEach((jdtMarker, change) -> {
+					if (change.removed ||
+						(change.addition != null && forwardedMarkers.containsKey(jdtMarker)))
+						removeMarker(jdtMarker).run(monitor);
+				});
+				changes.forEach((jdtMarker, change) -> {
+					@Nullable MarkerJob addition = change.addition;
+					if (addition != null) addition.run(monitor);
+				});
+				forwardingsSanityCheck();
+				for (IProject project : dirtyProjects.toArray(new IProject[0]))
+					saveState(project);
+			}
+			return Status.OK_STATUS;
+		}
+	};
+	
+	/**
+	 * Logs some debugging message
+	 * @param s
+	 */
+	private static void log(String s) {
+		Log.log(Log.Level.DEBUG, s + "\n");
+	}
+
+	/**
+	 * Logs some warning message
+	 * @param s
+	 */
+	private static void logErr(String s) {
+		Log.log(Log.Level.WARNING, s + "\n");
+	}
+	
+	/**
+	 * Container class packing together the Dolmen resource from
+	 * which some resource was generated and the associated
+	 * source mapping
+	 * 
+	 * @author Stéphane Lescuyer
+	 */
+	private static final class GeneratedSource {
+		final IFile dolmenResource;
+		final SourceMapping smap;
+		
+		GeneratedSource(IFile dolmenResource, SourceMapping smap) {
+			this.dolmenResource = dolmenResource;
+			this.smap = smap;
+		}
+	}
+	
+	/**
+	 * Container class packing together an origin for a forwarded
+	 * marker and the associated original JDT message. It also
+	 * specifies the resource in which the marker is forwarded in
+	 * case there are several Dolmen resources with similar markers
+	 * at the same positions.
+	 * 
+	 * @author Stéphane Lescuyer
+	 */
+	static final class Forwarding { // implements Comparable<Forwarding> {
+		final IFile dolmenResource;
+		final SourceMapping.Origin origin;
+		final String message;
+		
+		Forwarding(IFile dolmenResource, SourceMapping.Origin origin, String message) {
+			this.dolmenResource = dolmenResource;
+			this.origin = origin;
+			this.message = message;
+		}
+
+		@Override
+		public int hashCode() {
+			int result = dolmenResource.hashCode();
+			result = 31 * result + origin.hashCode();
+			result = 31 * result + message.hashCode();
+			return result;
+		}
+		
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) return true;
+			if (!(o instanceof Forwarding)) return false;
+			Forwarding fwd = (Forwarding) o;
+			if (!(dolmenResource.equals(fwd.dolmenResource))) return false;
+			if (!(message.equals(fwd.message))) return false;
+			if (!(origin.equals(fwd.origin))) return false;
+			return true;
+		}
+		
+		@Override
+		public String toString() {
+			return "[origin=" + origin +", msg=" + message + "]";
+		}
+	}
+	
+	/**
+	 * Common class for all atomic jobs scheduled when
+	 * listening to JDT problem markers
+	 * 
+	 * @author Stéphane Lescuyer
+	 */
+	private abstract class MarkerJob implements IJobFunction {
+		@Override
+		public abstract IStatus run(IProgressMonitor monitor);
+	}
+
+	/**
+	 * @param jdtMarker
+	 * @return a marker job for when the given JDT marker is
+	 * 	removed, which removes the corresponding copied marker
+	 * 	in Dolmen if any
+	 */
+	MarkerJob removeMarker(IMarker jdtMarker) {
+		return new MarkerJob() {
+			@Override
+			public IStatus run(IProgressMonitor monitor) {
+				@Nullable Forwarding fwd = forwardedMarkers.get(jdtMarker);
+				if (fwd == null) return Status.OK_STATUS;
+				
+				log("[==> Remove marker " + jdtMarker.getId() + "]");
+				// Remove this origin's rule and if it was
+				// the last one, remove the forwarded marker as well
+				SourceMapping.Origin origin = fwd.origin;
+				Map<@Nullable String, Integer> rules = Nulls.ok(ruleNamesByOrigin.get(fwd));
+				Integer count = Nulls.ok(rules.get(origin.ruleName));
+				if (count == 1)
+					rules.remove(origin.ruleName);
+				else
+					rules.replace(origin.ruleName, count - 1);
+				if (rules.isEmpty()) {
+					ruleNamesByOrigin.remove(fwd);
+					IMarker dolmenMarker = Nulls.ok(markersByOrigin.remove(fwd));
+					try {
+						dolmenMarker.delete();
+					} catch (CoreException e) {
+						e.printStackTrace();
+					}
+					log("Deleted Dolmen marker " + dolmenMarker.getId() + " at " + fwd);
+				}
+				forwardedMarkers.remove(jdtMarker);
+				dirtyProjects.add(fwd.dolmenResource.getProject());
+				log("[<== Remove marker " + jdtMarker.getId() + "]");
+				
+				return Status.OK_STATUS;
+			}
+		};
+	}
+	
+	/**
+	 * @param jdtMarker
+	 * @param dolmenRes
+	 * @param smap
+	 * @return a marker job which reacts to the change or creation of
+	 * 	the given JDT problem marker by copying it on {@code dolmenRes}
+	 * 	if the marker's position can be mapped via the given source mapping
+	 */
+	MarkerJob addMarker(IMarker jdtMarker, IFile dolmenRes, SourceMapping smap) {
+		return new MarkerJob() {
+			@Override
+			public IStatus run(IProgressMonitor monitor) {
+				int start = jdtMarker.getAttribute(IMarker.CHAR_START, -1);
+				int end = jdtMarker.getAttribute(IMarker.CHAR_END, -1);
+				int length = end - start;
+				SourceMapping.@Nullable Origin origin = smap.map(start, length);
+				if (origin == null) return Status.OK_STATUS;
+
+				log("[==> Add marker " + jdtMarker + "]");
+				// Look for an existing marker at this origin
+				final String jdtMessage = 
+					jdtMarker.getAttribute(IMarker.MESSAGE, "<no message>");
+				final Forwarding fwd = new Forwarding(dolmenRes, origin, jdtMessage);
+				forwardedMarkers.put(jdtMarker, fwd);
+				@Nullable IMarker dolmenMarker = markersByOrigin.get(fwd);
+				// It may be that the marker has been deleted by the builder directly
+				// in which case we consider it as if it needed to be created
+				if (dolmenMarker != null && !dolmenMarker.exists()) {
+					dolmenMarker = null;
+					// we could remove(fwd) from ruleNamesByOrigin but this is going
+					// to be done below with a forced replacement
+				}
+				final Map<@Nullable String, Integer> rules;
+				if (dolmenMarker == null) {
+					// Forward the marker, record the origin
+					dolmenMarker = Marker.copyFromJDT(dolmenRes, jdtMarker, origin);
+					log("Created Dolmen marker " + dolmenMarker.getId() + " at " + fwd);
+					rules = new HashMap<>();
+					rules.put(origin.ruleName, 1);
+					ruleNamesByOrigin.put(fwd, rules);
+					markersByOrigin.put(fwd, dolmenMarker);
+				}
+				else {
+					// Extend the existing marker with the new origin
+					rules = Nulls.ok(ruleNamesByOrigin.get(fwd));
+					@Nullable Integer count = rules.get(origin.ruleName);
+					rules.put(origin.ruleName, count == null ? 1 : count + 1);
+				}
+				Marker.updateMessage(dolmenMarker, jdtMessage, rules);
+				dirtyProjects.add(dolmenRes.getProject());
+				log("[<== Add marker " + jdtMarker + "]");
+
+				return Status.OK_STATUS;
+			}
+		};
+	}
+	
+	private void forwardingsSanityCheck() {
+		for (Map.Entry<IMarker, Forwarding> entry : forwardedMarkers.entrySet()) {
+			IMarker jdtMarker = entry.getKey();
+			Forwarding fwd = entry.getValue();
+			if (!jdtMarker.exists())
+				logErr("JDT marker " + jdtMarker + " is registered to " + fwd + " but does not exist anymore");
+
+			@Nullable  Map<@Nullable String, Integer> rules = ruleNamesByOrigin.get(fwd);
+			@Nullable IMarker dolmenMarker = markersByOrigin.get(fwd);
+			if (rules == null)
+				logErr("Rules for " + fwd + " (associated to " + jdtMarker + ") are missing");
+			else {
+				rules.forEach((rule, count) -> {
+					if (count <= 0)
+						logErr("Count for rule " + Objects.toString(rule) + " is invalid: " + count);
+				});
+			}
+			if (dolmenMarker == null)
+				logErr("Dolmen marker " + fwd + " (associated to " + jdtMarker + ") is missing");
+			else {
+				if (!dolmenMarker.exists())
+					logErr("Dolmen marker " + fwd + " (associated to " + jdtMarker + ") does not exist anymore");
+			}
+		}
+	}
+}
@@ -0,0 +1,259 @@
+package org.stekikun.dolmenplugin.base;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.jdt.annotation.Nullable;
+import org.stekikun.dolmenplugin.Activator;
+
+/**
+ * An opt-in tracer which records the activity of the Dolmen builder
+ * and related services as spans, and writes them as a Chrome
+ * trace-event JSON file which can be opened in a trace viewer,
+ * such as {@code chrome://tracing} or Perfetto.
+ * <p>
+ * Tracing is enabled as long as the last build of some project was
+ * performed with the {@link BuildOptions#trace} option. Spans are
+ * recorded in memory, up to {@link #MAX_EVENTS} of them, and are
+ * {@linkplain #flush() written} to {@link #FILENAME} in the plug-in's
+ * state location in the workspace metadata at the end of every build.
+ * Each span records the thread it ran on and the resource it is
+ * about, if any.
+ * <p>
+ * When tracing is disabled, {@link #begin} returns a shared span
+ * which does nothing, so that instrumented code paths cost next
+ * to nothing.
+ * <p>
+ * This class can be used concurrently.
+ *
+ * @author Stéphane Lescuyer
+ */
+public final class Trace {
+
+	private Trace() {
+		// Static utility only
+	}
+
+	/**
+	 * The name of the trace file in the plug-in's state location
+	 */
+	public static final String FILENAME = "dolmen-trace.json";
+
+	/**
+	 * The maximum number of spans kept in memory,
+	 * the oldest spans being dropped first
+	 */
+	public static final int MAX_EVENTS = 1 << 18;
+
+	/**
+	 * A span of activity, which is recorded when it is {@linkplain #close()
+	 * closed}. Spans are meant to be used in try-with-resources statements.
+	 */
+	public static class Span implements AutoCloseable {
+		private final String category;
+		private final String name;
+		private final @Nullable String resource;
+		private final long start;
+
+		private Span(String category, String name, @Nullable String resource) {
+			this.category = category;
+			this.name = name;
+			this.resource = resource;
+			this.start = System.nanoTime();
+		}
+
+		@Override
+		public void close() {
+			complete(category, name, resource, start, System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * The span returned when tracing is disabled
+	 */
+	private static final Span NONE = new Span("", "", null) {
+		@Override
+		public void close() {
+			// Nothing to record
+		}
+	};
+
+	/**
+	 * A complete trace event
+	 */
+	private static final class Event {
+		final String category;
+		final String name;
+		final @Nullable String resource;
+		final long start;
+		final long duration;
+		final long tid;
+
+		Event(String category, String name, @Nullable String resource,
+				long start, long duration, long tid) {
+			this.category = category;
+			this.name = name;
+			this.resource = resource;
+			this.start = start;
+			this.duration = duration;
+			this.tid = tid;
+		}
+	}
+
+	/** The projects whose last build was traced */
+	private static final Set<String> tracedProjects = ConcurrentHashMap.newKeySet();
+	private static volatile boolean enabled = false;
+
+	/** The time origin of the trace, as given by {@link System#nanoTime()} */
+	private static final long origin = System.nanoTime();
+	private static final Deque<Event> events = new ArrayDeque<>();
+	private static final Map<Long, String> threadNames = new ConcurrentHashMap<>();
+
+	/**
+	 * Records whether the builds of {@code project} are traced
+	 *
+	 * @param project
+	 * @param traced
+	 */
+	static void setTraced(IProject project, boolean traced) {
+		if (traced)
+			tracedProjects.add(project.getName());
+		else
+			tracedProjects.remove(project.getName());
+		enabled = !tracedProjects.isEmpty();
+	}
+
+	/**
+	 * @return whether tracing is currently enabled
+	 */
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @param category	the category of the span, e.g. {@code "builder"}
+	 * @param name		the name of the span
+	 * @param resource	the resource the span is about, if any
+	 * @return a new span starting now, which is recorded when closed
+	 */
+	public static Span begin(String category, String name, @Nullable IResource resource) {
+		if (!enabled) return NONE;
+		return new Span(category, name,
+			resource == null ? null : resource.getFullPath().toString());
+	}
+
+	/**
+	 * Records a span which has already completed, on the current thread
+	 *
+	 * @param category	the category of the span
+	 * @param name		the name of the span
+	 * @param resource	the full path of the resource the span is about, if any
+	 * @param start		when the span started, as given by {@link System#nanoTime()}
+	 * @param duration	the duration of the span, in nanoseconds
+	 */
+	public static void complete(String category, String name,
+			@Nullable String resource, long start, long duration) {
+		if (!enabled) return;
+		final Thread thread = Thread.currentThread();
+		threadNames.putIfAbsent(thread.getId(), thread.getName());
+		final Event event = new Event(category, name, resource,
+			start - origin, duration, thread.getId());
+		synchronized (events) {
+			if (events.size() == MAX_EVENTS)
+				events.removeFirst();
+			events.addLast(event);
+		}
+	}
+
+	/**
+	 * Writes all spans recorded so far to the trace file, if tracing
+	 * is enabled or if spans were recorded while it was
+	 */
+	public static void flush() {
+		final List<Event> snapshot;
+		synchronized (events) {
+			if (events.isEmpty()) return;
+			snapshot = new ArrayList<>(events);
+		}
+		final Activator activator = Activator.getDefault();
+		if (activator == null) return;
+		final File file = activator.getStateLocation().append(FILENAME).toFile();
+		try {
+			final File tmp = File.createTempFile("trace", ".tmp", file.getParentFile());
+			try {
+				try (BufferedWriter writer = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8)) {
+					write(snapshot, writer);
+				}
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			} finally {
+				tmp.delete();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private static void write(List<Event> snapshot, Appendable out) throws IOException {
+		out.append("{\"displayTimeUnit\": \"ms\", \"traceEvents\": [\n");
+		boolean first = true;
+		// Name the threads so that they can be told apart in the viewer
+		for (Map.Entry<Long, String> e : threadNames.entrySet()) {
+			out.append(first ? "" : ",\n");
+			first = false;
+			out.append("{\"ph\": \"M\", \"name\": \"thread_name\", \"pid\": 1, \"tid\": ")
+				.append(Long.toString(e.getKey()))
+				.append(", \"args\": {\"name\": ").append(quote(e.getValue())).append("}}");
+		}
+		for (Event event : snapshot) {
+			out.append(first ? "" : ",\n");
+			first = false;
+			out.append("{\"ph\": \"X\", \"cat\": ").append(quote(event.category));
+			out.append(", \"name\": ").append(quote(event.name));
+			out.append(", \"pid\": 1, \"tid\": ").append(Long.toString(event.tid));
+			out.append(", \"ts\": ").append(micros(event.start));
+			out.append(", \"dur\": ").append(micros(event.duration));
+			final @Nullable String resource = event.resource;
+			if (resource != null)
+				out.append(", \"args\": {\"resource\": ").append(quote(resource)).append("}");
+			out.append("}");
+		}
+		out.append("\n]}\n");
+	}
+
+	private static String micros(long nanos) {
+		return String.format(Locale.ROOT, "%.3f", nanos / 1e3);
+	}
+
+	private static String quote(String s) {
+		StringBuilder buf = new StringBuilder(s.length() + 2);
+		buf.append('"');
+		for (int i = 0; i < s.length(); ++i) {
+			final char c = s.charAt(i);
+			switch (c) {
+			case '"': buf.append("\\\""); break;
+			case '\\': buf.append("\\\\"); break;
+			default:
+				if (c < 0x20)
+					buf.append(String.format("\\u%04x", (int) c));
+				else
+					buf.append(c);
+			}
+		}
+		buf.append('"');
+		return buf.toString();
+	}
+}
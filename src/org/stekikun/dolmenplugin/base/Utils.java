@@ -76,6 +76,20 @@ public abstract class Utils {
 	public static final QualifiedName GENERATED_PROPERTY =
 		new QualifiedName("org.stekikun.dolmenplugin.base", "GENERATED");
 	
+	/**
+	 * The key for the property which is defined on resources
+	 * generated by Dolmen, and which holds the digest of the
+	 * Dolmen description and settings they were generated from
+	 */
+	public static final QualifiedName DIGEST_PROPERTY =
+		new QualifiedName("org.stekikun.dolmenplugin.base", "DIGEST");
+	
+	/**
+	 * The value of {@link #DIGEST_PROPERTY} on generated resources
+	 * which must be generated again, as it matches no actual digest
+	 */
+	public static final String PARTIAL_DIGEST = "partial";
+	
 	/**
 	 * @param file
 	 * @return {@code true} if the given file resource
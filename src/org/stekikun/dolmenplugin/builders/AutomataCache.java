@@ -0,0 +1,237 @@
+package org.stekikun.dolmenplugin.builders;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.core.resources.IFile;
+import org.eclipse.jdt.annotation.Nullable;
+import org.stekikun.dolmen.automaton.Automata;
+import org.stekikun.dolmen.automaton.Determinize;
+import org.stekikun.dolmen.syntax.Located;
+import org.stekikun.dolmen.syntax.Lexer;
+import org.stekikun.dolmen.syntax.Regular;
+import org.stekikun.dolmen.tagged.TLexerEntry.Finisher;
+
+/**
+ * A cache of the automata computed by {@link Determinize#lexer}
+ * for the lexer descriptions in the workspace, so that edits which
+ * only touch the semantic actions, header or footer of a lexer
+ * do not require determinizing it all over again.
+ * <p>
+ * The cache remembers the last automata computed for each lexer
+ * description, along with the {@linkplain #fingerprint structural
+ * fingerprint} of the lexer it was computed from. Since automata
+ * refer to the semantic actions by their {@linkplain
+ * org.stekikun.dolmen.syntax.Extent extents} in the description,
+ * a cached automata is never returned as is but is first
+ * {@linkplain #relocate relocated} to the new lexer's extents.
+ * <p>
+ * This class can be used concurrently on different resources.
+ *
+ * @author Stéphane Lescuyer
+ */
+final class AutomataCache {
+
+	private AutomataCache() {
+		// Static utility only
+	}
+
+	/**
+	 * A cached automata along with the fingerprint of
+	 * the lexer it was computed from
+	 */
+	private static final class Cached {
+		final String fingerprint;
+		final Automata automata;
+
+		Cached(String fingerprint, Automata automata) {
+			this.fingerprint = fingerprint;
+			this.automata = automata;
+		}
+	}
+
+	private static final Map<IFile, Cached> cache = new ConcurrentHashMap<>();
+
+	/**
+	 * @param res	the lexer description {@code lexer} was parsed from
+	 * @param lexer
+	 * @return the automata for {@code lexer}, reusing the automata
+	 * 	last computed for {@code res} if the regular expressions
+	 * 	in {@code lexer} have not changed since, or {@code null}
+	 * 	if it must be computed from scratch
+	 */
+	static @Nullable Automata find(IFile res, Lexer lexer) {
+		final Cached cached = cache.get(res);
+		if (cached == null) return null;
+		if (!cached.fingerprint.equals(fingerprint(lexer))) return null;
+		return relocate(cached.automata, lexer);
+	}
+
+	/**
+	 * Records {@code aut} as the automata computed
+	 * for the lexer {@code lexer} parsed from {@code res}
+	 *
+	 * @param res
+	 * @param lexer
+	 * @param aut
+	 */
+	static void record(IFile res, Lexer lexer, Automata aut) {
+		cache.put(res, new Cached(fingerprint(lexer), aut));
+	}
+
+	/**
+	 * Forgets the automata cached for {@code res}, if any
+	 *
+	 * @param res
+	 */
+	static void forget(IFile res) {
+		cache.remove(res);
+	}
+
+	/**
+	 * The fingerprint of a lexer describes everything which
+	 * {@link Determinize#lexer} depends on, namely the regular
+	 * expressions and the names and kinds of the entries, but
+	 * abstracts away the semantic actions, the header and the
+	 * footer, and the other Java fragments of the description.
+	 * Two lexers with the same fingerprint yield automata which
+	 * only differ by the extents they refer to.
+	 * <p>
+	 * <i>Regular expressions are described by their structure,
+	 *  and not by their {@linkplain Regular#toString() display}
+	 *  which can be the same for different expressions, e.g.
+	 *  {@code eof} and {@code "EOF"}.</i>
+	 *
+	 * @param lexer
+	 * @return the structural fingerprint of {@code lexer}
+	 */
+	private static String fingerprint(Lexer lexer) {
+		StringBuilder buf = new StringBuilder();
+		final Fingerprinter fingerprinter = new Fingerprinter(buf);
+		for (Map.Entry<Located<String>, Regular> e : lexer.regulars.entrySet()) {
+			buf.append(e.getKey().val).append('=');
+			e.getValue().fold(fingerprinter);
+			buf.append('\n');
+		}
+		for (Lexer.Entry entry : lexer.entryPoints) {
+			buf.append(entry.visibility ? "public " : "private ");
+			buf.append(entry.name.val);
+			buf.append(entry.shortest ? " shortest" : " parse");
+			buf.append(" (").append(entry.clauses.size()).append(")\n");
+			for (Lexer.Clause clause : entry.clauses) {
+				buf.append("| ");
+				clause.regular.val.fold(fingerprinter);
+				buf.append('\n');
+			}
+		}
+		return buf.toString();
+	}
+
+	/**
+	 * Describes a regular expression unambiguously, in prefix
+	 * notation where every node is tagged with its kind, character
+	 * sets are described by the bounds of their intervals and
+	 * bound names are prefixed with their length
+	 */
+	private static final class Fingerprinter implements Regular.Folder<@Nullable Void> {
+		private final StringBuilder buf;
+
+		Fingerprinter(StringBuilder buf) {
+			this.buf = buf;
+		}
+
+		@Override
+		public @Nullable Void epsilon() {
+			buf.append('E');
+			return null;
+		}
+
+		@Override
+		public @Nullable Void eof() {
+			buf.append('F');
+			return null;
+		}
+
+		@Override
+		public @Nullable Void chars(Regular.Characters chars) {
+			buf.append("C[");
+			chars.chars.forEachInterval((first, last) ->
+				buf.append(Integer.toHexString(first)).append('-')
+					.append(Integer.toHexString(last)).append(','));
+			buf.append(']');
+			return null;
+		}
+
+		@Override
+		public @Nullable Void alternate(Regular.Alternate alt) {
+			buf.append("A(");
+			alt.lhs.fold(this);
+			buf.append(',');
+			alt.rhs.fold(this);
+			buf.append(')');
+			return null;
+		}
+
+		@Override
+		public @Nullable Void sequence(Regular.Sequence seq) {
+			buf.append("S(");
+			seq.first.fold(this);
+			buf.append(',');
+			seq.second.fold(this);
+			buf.append(')');
+			return null;
+		}
+
+		@Override
+		public @Nullable Void repetition(Regular.Repetition rep) {
+			buf.append("R(");
+			rep.reg.fold(this);
+			buf.append(')');
+			return null;
+		}
+
+		@Override
+		public @Nullable Void binding(Regular.Binding binding) {
+			final String name = binding.name.val;
+			buf.append('B').append(name.length()).append(':').append(name).append('(');
+			binding.reg.fold(this);
+			buf.append(')');
+			return null;
+		}
+	}
+
+	/**
+	 * @param aut	an automata computed from a lexer with the
+	 * 	same fingerprint as {@code lexer}
+	 * @param lexer
+	 * @return an automata equivalent to {@code aut} but referring
+	 * 	to the semantic actions and other Java fragments of {@code lexer}
+	 */
+	private static Automata relocate(Automata aut, Lexer lexer) {
+		List<Automata.Entry> entries = new ArrayList<>(aut.automataEntries.size());
+		for (Automata.Entry aentry : aut.automataEntries) {
+			// Entries are matched by name, as in Automata#findProblems
+			Lexer.Entry lentry = null;
+			for (Lexer.Entry e : lexer.entryPoints) {
+				if (e.name.val.equals(aentry.name)) {
+					lentry = e;
+					break;
+				}
+			}
+			if (lentry == null)
+				throw new IllegalStateException("Lexer entry " + aentry.name
+					+ " has no counterpart in the lexer description");
+			List<Finisher> finishers = new ArrayList<>(aentry.finishers.size());
+			for (Finisher fi : aentry.finishers)
+				finishers.add(new Finisher(fi.action, fi.tags,
+							lentry.clauses.get(fi.action).action));
+			entries.add(new Automata.Entry(aentry.visibility, aentry.name,
+				lentry.returnType, lentry.args, aentry.memSize,
+				aentry.initialState, aentry.initializer, finishers));
+		}
+		return new Automata(lexer.imports, lexer.header, lexer.footer,
+				entries, aut.automataCells);
+	}
+}
@@ -0,0 +1,320 @@
+package org.stekikun.dolmenplugin.builders;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.OperationCanceledException;
+import org.eclipse.jdt.annotation.Nullable;
+import org.stekikun.dolmen.automaton.Automata;
+import org.stekikun.dolmen.codegen.LexBuffer.Position;
+import org.stekikun.dolmen.syntax.IReport;
+import org.stekikun.dolmen.syntax.IReport.Severity;
+import org.stekikun.dolmen.syntax.Located;
+import org.stekikun.dolmen.syntax.Lexer;
+import org.stekikun.dolmen.syntax.PGrammar;
+import org.stekikun.dolmen.syntax.PGrammarRule;
+import org.stekikun.dolmen.syntax.PProduction;
+import org.stekikun.dolmen.syntax.PProduction.ActualExpr;
+import org.stekikun.dolmenplugin.base.BuildOptions;
+
+/**
+ * The resources which the compilation of a single Dolmen description
+ * is allowed to use, as configured in the {@link BuildOptions}: wall
+ * time, number of ground non-terminals in an expanded grammar, number
+ * of states in a lexer's automata, and size of the generated class.
+ * Limits which are not positive are not enforced.
+ * <p>
+ * When a budget is exceeded, an {@link Exceeded} exception is thrown,
+ * which carries an error report naming the metric which exploded,
+ * attached to the rule or entry responsible for it when it is known.
+ * The compilation is aborted but the rest of the build goes on.
+ * <p>
+ * The expensive phases of a compilation are single calls into Dolmen
+ * which cannot be interrupted from the outside, so the time budget is
+ * only {@linkplain #checkTime checked} between phases and during code
+ * generation. The size of an expanded grammar is {@linkplain
+ * #checkExpansion computed beforehand}, so that an exploding expansion
+ * is never actually performed. The number of states of a lexer, on the
+ * other hand, is only {@linkplain #checkStates checked} once its
+ * automata have been computed.
+ * <p>
+ * <b>When compiling in the IDE's process, a budget cannot stop a
+ *  runaway determinization</b>: a lexer whose automata blow up keeps
+ *  running, and can freeze the build or exhaust the IDE's memory,
+ *  until the determinization completes and the budget is checked.
+ *  The time and state budgets are only enforced for real when
+ *  compiling in {@linkplain WorkerPool worker processes}, which
+ *  are killed when their compilation exceeds its time budget, and
+ *  whose memory is bounded by {@link BuildOptions#workerHeap}.
+ *
+ * @author Stéphane Lescuyer
+ */
+final class Budget {
+
+	/**
+	 * Thrown when a compilation exceeds its budget
+	 */
+	static final class Exceeded extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		/** The error describing the budget which was exceeded */
+		final IReport report;
+
+		private Exceeded(IReport report) {
+			super(report.getMessage());
+			this.report = report;
+		}
+	}
+
+	private final String filename;
+	private final IProgressMonitor monitor;
+	private final long maxNanos;
+	private final long deadline;
+	private final int maxNonTerminals;
+	private final int maxStates;
+	private final long maxGeneratedBytes;
+	private final List<Located<String>> anchors;
+
+	/**
+	 * @param options	the options of the build
+	 * @param filename	the path of the description being compiled
+	 * @param monitor	the monitor of the compilation
+	 */
+	Budget(BuildOptions options, String filename, IProgressMonitor monitor) {
+		this.filename = filename;
+		this.monitor = monitor;
+		this.maxNanos = TimeUnit.SECONDS.toNanos(options.maxTime);
+		this.deadline = System.nanoTime() + maxNanos;
+		this.maxNonTerminals = options.maxNonTerminals;
+		this.maxStates = options.maxStates;
+		this.maxGeneratedBytes = 1024L * options.maxGeneratedKiB;
+		this.anchors = new ArrayList<>();
+	}
+
+	/**
+	 * Declares the names of the entries or rules of the description,
+	 * which are used to locate the problems when exceeding a budget
+	 *
+	 * @param names
+	 */
+	void anchors(List<Located<String>> names) {
+		anchors.clear();
+		anchors.addAll(names);
+	}
+
+	/**
+	 * @param message
+	 * @param anchor	can be {@code null}
+	 * @return an exception with an error report with the given
+	 * 	message, attached to {@code anchor} if any or else to the first
+	 * 	known entry or rule, or to the beginning of the description
+	 */
+	private Exceeded exceeded(String message, @Nullable Located<String> anchor) {
+		Located<String> loc = anchor;
+		if (loc == null && !anchors.isEmpty())
+			loc = anchors.get(0);
+		if (loc == null) {
+			final Position start = new Position(filename);
+			return new Exceeded(IReport.of(message, Severity.ERROR, Located.of(message, start, start)));
+		}
+		return new Exceeded(IReport.of(message, Severity.ERROR, loc));
+	}
+
+	private @Nullable Located<String> anchor(String name) {
+		for (Located<String> anchor : anchors)
+			if (anchor.val.equals(name)) return anchor;
+		return null;
+	}
+
+	/**
+	 * @param phase	the phase of the compilation about to start
+	 * @throws Exceeded if the time budget has already been exhausted
+	 */
+	void checkTime(String phase) {
+		if (maxNanos <= 0) return;
+		if (System.nanoTime() - deadline >= 0)
+			throw exceeded(timeMessage(phase), null);
+	}
+
+	/**
+	 * @return the number of nanoseconds left in the time budget,
+	 * 	or {@link Long#MAX_VALUE} if the time is not limited
+	 */
+	long remainingNanos() {
+		if (maxNanos <= 0) return Long.MAX_VALUE;
+		return deadline - System.nanoTime();
+	}
+
+	/**
+	 * @param phase	the phase of the compilation which was running
+	 * @return an exception describing that the time budget was
+	 * 	exhausted during {@code phase}
+	 */
+	Exceeded timeExceeded(String phase) {
+		return exceeded(timeMessage(phase), null);
+	}
+
+	private String timeMessage(String phase) {
+		return "Compilation aborted during " + phase + ": it exceeded the time budget of "
+			+ TimeUnit.NANOSECONDS.toSeconds(maxNanos) + "s (option " + BuildOptions.MAX_TIME + ")";
+	}
+
+	/**
+	 * Computes the number of ground non-terminals in the expansion of
+	 * {@code pgrammar}, without actually expanding it, and checks that
+	 * it fits in the budget. The grammar must have been checked to be
+	 * expandable.
+	 *
+	 * @param pgrammar
+	 * @throws Exceeded if the expanded grammar would have too many
+	 * 	non-terminals, in which case the report is attached to the
+	 * 	parametric rule with the most instances
+	 */
+	void checkExpansion(PGrammar pgrammar) {
+		if (maxNonTerminals <= 0) return;
+		// Mimick Expansion#realize, but only keep track of the
+		// names of the ground instances which are generated
+		final Set<String> generated = new HashSet<>();
+		final Map<String, Integer> instances = new HashMap<>();
+		final Deque<ActualExpr> todo = new ArrayDeque<>();
+		for (PGrammarRule rule : pgrammar.rules.values()) {
+			if (rule.visibility)
+				todo.push(new ActualExpr(rule.name, new ArrayList<>()));
+		}
+		while (!todo.isEmpty()) {
+			final ActualExpr pending = todo.pop();
+			if (!generated.add(groundName(pending))) continue;
+			final PGrammarRule rule = pgrammar.rule(pending.symb.val);
+			instances.merge(rule.name.val, 1, Integer::sum);
+			if (generated.size() > maxNonTerminals) {
+				String worst = rule.name.val;
+				for (Map.Entry<String, Integer> e : instances.entrySet())
+					if (e.getValue() > instances.get(worst)) worst = e.getKey();
+				throw exceeded("Grammar expansion aborted: it would produce more than "
+					+ maxNonTerminals + " ground non-terminals (option "
+					+ BuildOptions.MAX_NON_TERMINALS + "), "
+					+ instances.get(worst) + " of which are instances of rule " + worst,
+					pgrammar.rule(worst).name);
+			}
+			if ((generated.size() & 0xFF) == 0 && monitor.isCanceled())
+				throw new OperationCanceledException();
+
+			final Map<String, ActualExpr> pinst = new HashMap<>();
+			for (int i = 0; i < rule.params.size(); ++i)
+				pinst.put(rule.params.get(i).val, pending.params.get(i));
+			for (PProduction prod : rule.productions) {
+				for (PProduction.Actual actual : prod.actuals()) {
+					final ActualExpr inst = instantiate(actual.item, pinst);
+					if (!inst.isTerminal())
+						todo.push(inst);
+				}
+			}
+		}
+	}
+
+	private static ActualExpr instantiate(ActualExpr aexpr, Map<String, ActualExpr> pinst) {
+		if (aexpr.isTerminal()) return aexpr;
+		final @Nullable ActualExpr img = pinst.get(aexpr.symb.val);
+		if (img != null) return img;
+		if (aexpr.params.isEmpty()) return aexpr;
+		List<ActualExpr> params = new ArrayList<>(aexpr.params.size());
+		for (ActualExpr param : aexpr.params)
+			params.add(instantiate(param, pinst));
+		return new ActualExpr(aexpr.symb, params);
+	}
+
+	private static String groundName(ActualExpr aexpr) {
+		if (aexpr.params.isEmpty()) return aexpr.symb.val;
+		StringBuilder buf = new StringBuilder();
+		buf.append(aexpr.symb.val).append('<');
+		boolean first = true;
+		for (ActualExpr param : aexpr.params) {
+			if (first) first = false;
+			else buf.append(", ");
+			buf.append(groundName(param));
+		}
+		buf.append('>');
+		return buf.toString();
+	}
+
+	/**
+	 * Checks that the automata computed for {@code lexer} fits in the budget.
+	 * <p>
+	 * This can only be checked once the automata have been computed,
+	 * and thus does not prevent an exploding determinization.
+	 *
+	 * @param aut
+	 * @param lexer
+	 * @throws Exceeded if the automata has too many states, in which case
+	 * 	the report is attached to the entry with the most states
+	 */
+	void checkStates(Automata aut, Lexer lexer) {
+		if (maxStates <= 0) return;
+		final int total = aut.automataCells.length;
+		if (total <= maxStates) return;
+		// The states of each entry are numbered consecutively
+		// from the entry's initial state
+		final List<Automata.Entry> entries = new ArrayList<>(aut.automataEntries);
+		entries.sort((e1, e2) -> Integer.compare(e1.initialState, e2.initialState));
+		String worst = null;
+		int worstStates = -1;
+		for (int i = 0; i < entries.size(); ++i) {
+			final Automata.Entry entry = entries.get(i);
+			final int end = i + 1 < entries.size() ? entries.get(i + 1).initialState : total;
+			if (end - entry.initialState > worstStates) {
+				worst = entry.name;
+				worstStates = end - entry.initialState;
+			}
+		}
+		@Nullable Located<String> anchor = null;
+		for (Lexer.Entry entry : lexer.entryPoints)
+			if (entry.name.val.equals(worst)) anchor = entry.name;
+		throw exceeded("Lexer compilation aborted: its automata have " + total
+			+ " states, more than the budget of " + maxStates + " (option "
+			+ BuildOptions.MAX_STATES + "), " + worstStates + " of which for entry " + worst,
+			anchor);
+	}
+
+	/**
+	 * Checks that the class being generated fits in the budget
+	 *
+	 * @param generated	the contents generated so far
+	 * @param bytes		the size of {@code generated} in bytes, once
+	 * 	encoded with the charset of the generated class
+	 * @throws Exceeded if the generated class is too large, in which case
+	 * 	the report is attached to the entry or rule being generated
+	 */
+	void checkGenerated(CharSequence generated, long bytes) {
+		checkTime("code generation");
+		if (maxGeneratedBytes <= 0 || bytes <= maxGeneratedBytes) return;
+		// The generators introduce each entry and rule with a comment
+		final String marker = "Entry point for ";
+		final String text = generated.toString();
+		@Nullable Located<String> anchor = null;
+		@Nullable String name = null;
+		int idx = text.lastIndexOf(marker);
+		if (idx >= 0) {
+			int start = idx + marker.length();
+			if (text.startsWith("the non-terminal ", start))
+				start += "the non-terminal ".length();
+			else if (text.startsWith("rule ", start))
+				start += "rule ".length();
+			int end = start;
+			while (end < text.length() && Character.isJavaIdentifierPart(text.charAt(end)))
+				++end;
+			name = text.substring(start, end);
+			anchor = anchor(name);
+		}
+		throw exceeded("Code generation aborted: the generated class exceeds the budget of "
+			+ (maxGeneratedBytes / 1024) + "KiB (option " + BuildOptions.MAX_GENERATED_KIB + ")"
+			+ (name == null ? "" : ", while generating " + name), anchor);
+	}
+}
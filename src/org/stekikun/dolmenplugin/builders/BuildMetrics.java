@@ -0,0 +1,436 @@
+package org.stekikun.dolmenplugin.builders;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.eclipse.core.resources.IFile;
+import org.eclipse.jdt.annotation.Nullable;
+import org.stekikun.dolmenplugin.base.Trace;
+
+/**
+ * Keeps track of the time and memory spent in the various phases
+ * of the compilations of Dolmen descriptions performed by
+ * {@link JLCompile} and {@link JGCompile}.
+ * <p>
+ * Each compilation is measured by a {@link Probe}, and yields a
+ * {@link Record} which is added to a bounded, workspace-wide history
+ * of the last {@link #CAPACITY} compilations. The history can be
+ * {@linkplain #history() inspected}, for instance by the
+ * <i>Dolmen Build Metrics</i> view, and {@linkplain #toJSON exported}
+ * as JSON. When {@linkplain Trace tracing} is enabled, each phase
+ * is also recorded as a trace span.
+ * <p>
+ * <i>The memory allocated during a phase is measured for the thread
+ *  running the compilation, and is only available on JVMs whose
+ *  thread management bean implements the {@code com.sun.management}
+ *  extension, which is looked up reflectively.
+ * </i>
+ * <p>
+ * This class can be used concurrently.
+ *
+ * @author Stéphane Lescuyer
+ */
+public final class BuildMetrics {
+
+	private BuildMetrics() {
+		// Static utility only
+	}
+
+	/**
+	 * The maximum number of compilations kept in the history
+	 */
+	public static final int CAPACITY = 500;
+
+	/**
+	 * The possible outcomes of a compilation
+	 */
+	public static enum Outcome {
+		/** The generated class was already up-to-date */
+		UP_TO_DATE,
+		/** Only comments or layout had changed in the description */
+		LAYOUT_ONLY,
+		/** The generated class was restored from the output cache */
+		RESTORED,
+		/** The generated class was compiled and generated */
+		GENERATED,
+		/** The description could not be compiled */
+		FAILED,
+		/** The compilation was canceled */
+		CANCELED;
+	}
+
+	/**
+	 * The measures for one phase of a compilation
+	 */
+	public static final class Phase {
+		/** The name of the phase */
+		public final String name;
+		/** The wall time spent in the phase, in nanoseconds */
+		public final long nanos;
+		/** The bytes allocated during the phase, or {@code -1} if unknown */
+		public final long allocatedBytes;
+
+		private Phase(String name, long nanos, long allocatedBytes) {
+			this.name = name;
+			this.nanos = nanos;
+			this.allocatedBytes = allocatedBytes;
+		}
+	}
+
+	/**
+	 * The measures for one compilation of a Dolmen description
+	 */
+	public static final class Record {
+		/** The full path of the compiled description */
+		public final String description;
+		/** Whether the description is a lexer or a grammar description */
+		public final boolean lexer;
+		/** When the compilation started */
+		public final Instant start;
+		/** The outcome of the compilation */
+		public final Outcome outcome;
+		/** The phases of the compilation, in chronological order */
+		public final List<Phase> phases;
+		/** The number of states in the lexer's automata, or {@code -1} */
+		public final int states;
+		/** The number of ground non-terminals in the grammar, or {@code -1} */
+		public final int nonTerminals;
+		/** The size of the generated class in bytes, or {@code -1} */
+		public final long generatedBytes;
+
+		private Record(Probe probe, Outcome outcome) {
+			this.description = probe.description;
+			this.lexer = probe.lexer;
+			this.start = probe.start;
+			this.outcome = outcome;
+			this.phases = Collections.unmodifiableList(new ArrayList<>(probe.phases));
+			this.states = probe.states;
+			this.nonTerminals = probe.nonTerminals;
+			this.generatedBytes = probe.generatedBytes;
+		}
+
+		/**
+		 * @return the total wall time of the compilation, in nanoseconds
+		 */
+		public long totalNanos() {
+			long total = 0;
+			for (Phase phase : phases)
+				total += phase.nanos;
+			return total;
+		}
+
+		/**
+		 * @return the total number of bytes allocated during the
+		 * 	compilation, or {@code -1} if unknown
+		 */
+		public long totalAllocatedBytes() {
+			long total = 0;
+			for (Phase phase : phases) {
+				if (phase.allocatedBytes < 0) return -1;
+				total += phase.allocatedBytes;
+			}
+			return total;
+		}
+	}
+
+	/**
+	 * Measures the successive phases of a compilation. A probe
+	 * must be used by the thread running the compilation only.
+	 */
+	static final class Probe {
+		private final String description;
+		private final boolean lexer;
+		private final Instant start;
+		private final List<Phase> phases;
+		private @Nullable String phase;
+		private long phaseStart;
+		private long phaseAllocated;
+		private int states;
+		private int nonTerminals;
+		private long generatedBytes;
+		private @Nullable Outcome outcome;
+
+		private Probe(IFile res) {
+			this.description = res.getFullPath().toString();
+			this.lexer = "jl".equals(res.getFileExtension());
+			this.start = Instant.now();
+			this.phases = new ArrayList<>();
+			this.phase = null;
+			this.states = -1;
+			this.nonTerminals = -1;
+			this.generatedBytes = -1;
+			this.outcome = null;
+		}
+
+		private void endPhase() {
+			final @Nullable String name = phase;
+			if (name == null) return;
+			final long allocated = allocatedBytes();
+			final long nanos = System.nanoTime() - phaseStart;
+			phases.add(new Phase(name, nanos,
+				allocated < 0 || phaseAllocated < 0 ? -1 : allocated - phaseAllocated));
+			Trace.complete("compile", name, description, phaseStart, nanos);
+			phase = null;
+		}
+
+		/**
+		 * Ends the current phase, if any, and starts a new phase
+		 *
+		 * @param name	the name of the new phase
+		 */
+		void phase(String name) {
+			endPhase();
+			phase = name;
+			phaseAllocated = allocatedBytes();
+			phaseStart = System.nanoTime();
+		}
+
+		/**
+		 * Records the number of states in the lexer's automata
+		 *
+		 * @param n
+		 */
+		void states(int n) {
+			this.states = n;
+		}
+
+		/**
+		 * Records the number of ground non-terminals in the grammar
+		 *
+		 * @param n
+		 */
+		void nonTerminals(int n) {
+			this.nonTerminals = n;
+		}
+
+		/**
+		 * Records the size of the generated class
+		 *
+		 * @param bytes
+		 */
+		void generated(long bytes) {
+			this.generatedBytes = bytes;
+		}
+
+		/**
+		 * Records the outcome of the compilation
+		 *
+		 * @param outcome_
+		 */
+		void outcome(Outcome outcome_) {
+			this.outcome = outcome_;
+		}
+
+		/**
+		 * Ends the current phase, if any, and adds the measures of
+		 * the compilation to the history. The compilation is deemed
+		 * to have {@linkplain Outcome#FAILED failed} if no outcome
+		 * was recorded.
+		 */
+		void finish() {
+			endPhase();
+			final @Nullable Outcome outcome_ = outcome;
+			add(new Record(this, outcome_ == null ? Outcome.FAILED : outcome_));
+		}
+	}
+
+	/**
+	 * @param res	the description about to be compiled
+	 * @return a new probe to measure the compilation of {@code res}
+	 */
+	static Probe start(IFile res) {
+		return new Probe(res);
+	}
+
+	/**
+	 * The name of the extension of {@link ThreadMXBean} which can
+	 * measure the memory allocated by threads
+	 */
+	private static final String EXTENSION = "com.sun.management.ThreadMXBean";
+
+	/** The thread management bean, or {@code null} if it cannot measure allocations */
+	private static final @Nullable ThreadMXBean threads;
+	/** The extension's {@code getThreadAllocatedBytes(long)}, or {@code null} */
+	private static final @Nullable Method threadAllocatedBytes;
+	static {
+		@Nullable ThreadMXBean bean = null;
+		@Nullable Method method = null;
+		try {
+			final ThreadMXBean tbean = ManagementFactory.getThreadMXBean();
+			final @Nullable Class<?> ext = extension(tbean.getClass());
+			if (ext != null && Boolean.TRUE.equals(
+					ext.getMethod("isThreadAllocatedMemorySupported").invoke(tbean))) {
+				ext.getMethod("setThreadAllocatedMemoryEnabled", boolean.class).invoke(tbean, true);
+				method = ext.getMethod("getThreadAllocatedBytes", long.class);
+				bean = tbean;
+			}
+		} catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+			// Allocations are simply unknown
+			bean = null;
+			method = null;
+		}
+		threads = bean;
+		threadAllocatedBytes = method;
+	}
+
+	/**
+	 * @param clazz
+	 * @return the {@link #EXTENSION} interface if it is implemented
+	 * 	by {@code clazz}, or {@code null} otherwise
+	 */
+	private static @Nullable Class<?> extension(@Nullable Class<?> clazz) {
+		if (clazz == null) return null;
+		for (Class<?> itf : clazz.getInterfaces()) {
+			if (EXTENSION.equals(itf.getName())) return itf;
+			final @Nullable Class<?> ext = extension(itf);
+			if (ext != null) return ext;
+		}
+		return extension(clazz.getSuperclass());
+	}
+
+	/**
+	 * @return the number of bytes allocated so far by the
+	 * 	current thread, or {@code -1} if unknown
+	 */
+	private static long allocatedBytes() {
+		final @Nullable ThreadMXBean threads_ = threads;
+		final @Nullable Method method = threadAllocatedBytes;
+		if (threads_ == null || method == null) return -1;
+		try {
+			return (Long) method.invoke(threads_, Thread.currentThread().getId());
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return -1;
+		}
+	}
+
+	private static final Deque<Record> history = new ArrayDeque<>(CAPACITY);
+	private static final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+
+	private static void add(Record record) {
+		synchronized (history) {
+			if (history.size() == CAPACITY)
+				history.removeFirst();
+			history.addLast(record);
+		}
+		listeners.forEach(Runnable::run);
+	}
+
+	/**
+	 * @return the compilations in the history, from the oldest
+	 * 	to the most recent
+	 */
+	public static List<Record> history() {
+		synchronized (history) {
+			return new ArrayList<>(history);
+		}
+	}
+
+	/**
+	 * Empties the history
+	 */
+	public static void clear() {
+		synchronized (history) {
+			history.clear();
+		}
+		listeners.forEach(Runnable::run);
+	}
+
+	/**
+	 * Registers a listener which is called whenever the history
+	 * changes. <i>The listener can be called from any thread.</i>
+	 *
+	 * @param listener
+	 */
+	public static void addListener(Runnable listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Unregisters the given listener
+	 *
+	 * @param listener
+	 * @see #addListener(Runnable)
+	 */
+	public static void removeListener(Runnable listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Writes the given compilation records as a JSON array to {@code out}.
+	 * Durations are given in milliseconds, sizes in bytes, and unknown
+	 * measures are {@code null}.
+	 *
+	 * @param records
+	 * @param out
+	 * @throws IOException
+	 */
+	public static void toJSON(List<Record> records, Appendable out) throws IOException {
+		out.append("[");
+		boolean first = true;
+		for (Record record : records) {
+			out.append(first ? "\n" : ",\n");
+			first = false;
+			out.append("  {\"description\": ").append(quote(record.description));
+			out.append(", \"kind\": ").append(quote(record.lexer ? "lexer" : "grammar"));
+			out.append(", \"start\": ").append(quote(record.start.toString()));
+			out.append(", \"outcome\": ").append(quote(record.outcome.name()));
+			out.append(",\n   \"totalMillis\": ").append(millis(record.totalNanos()));
+			out.append(", \"allocatedBytes\": ").append(measure(record.totalAllocatedBytes()));
+			out.append(", \"states\": ").append(measure(record.states));
+			out.append(", \"nonTerminals\": ").append(measure(record.nonTerminals));
+			out.append(", \"generatedBytes\": ").append(measure(record.generatedBytes));
+			out.append(",\n   \"phases\": [");
+			boolean firstPhase = true;
+			for (Phase phase : record.phases) {
+				out.append(firstPhase ? "\n" : ",\n");
+				firstPhase = false;
+				out.append("     {\"name\": ").append(quote(phase.name));
+				out.append(", \"millis\": ").append(millis(phase.nanos));
+				out.append(", \"allocatedBytes\": ").append(measure(phase.allocatedBytes));
+				out.append("}");
+			}
+			out.append(firstPhase ? "]}" : "\n   ]}");
+		}
+		out.append(first ? "]\n" : "\n]\n");
+	}
+
+	private static String millis(long nanos) {
+		return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+	}
+
+	private static String measure(long n) {
+		return n < 0 ? "null" : Long.toString(n);
+	}
+
+	private static String quote(String s) {
+		StringBuilder buf = new StringBuilder(s.length() + 2);
+		buf.append('"');
+		for (int i = 0; i < s.length(); ++i) {
+			final char c = s.charAt(i);
+			switch (c) {
+			case '"': buf.append("\\\""); break;
+			case '\\': buf.append("\\\\"); break;
+			case '\n': buf.append("\\n"); break;
+			case '\r': buf.append("\\r"); break;
+			case '\t': buf.append("\\t"); break;
+			default:
+				if (c < 0x20)
+					buf.append(String.format("\\u%04x", (int) c));
+				else
+					buf.append(c);
+			}
+		}
+		buf.append('"');
+		return buf.toString();
+	}
+}
@@ -1,16 +1,24 @@
 package org.stekikun.dolmenplugin.builders;
 
 import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.Instant;
 import java.time.format.DateTimeParseException;
 
 import org.eclipse.core.resources.IFile;
 import org.eclipse.core.resources.IProject;
 import org.eclipse.core.runtime.CoreException;
+import org.eclipse.jdt.annotation.Nullable;
 import org.eclipse.jdt.core.ICompilationUnit;
 import org.eclipse.jdt.core.IJavaElement;
 import org.eclipse.jdt.core.IPackageFragment;
 import org.eclipse.jdt.core.JavaCore;
+import org.stekikun.dolmen.codegen.Config;
+import org.stekikun.dolmen.common.Constants;
 import org.stekikun.dolmenplugin.base.Utils;
 
 /**
@@ -102,13 +110,103 @@ public final class ClassFactory {
 	}
 
 	/**
-	 * @param cf
+	 * Describes the effective generator configuration which does
+	 * not stem from the options in the description itself (those 
+	 * are covered by the contents of the description)
+	 */
+	private static final String SETTINGS =
+		"positions=" + Config.DEFAULT.positions
+		+ ";classAnnotations=" + Config.DEFAULT.classAnnotations
+		+ ";tokenAnnotations=" + Config.DEFAULT.tokenAnnotations
+		+ ";optimisation=true";
+	
+	// The digest of the description as last read, see {@link #digest()}
+	private @Nullable String digest = null;
+	
+	/**
+	 * The digest of a Dolmen resource is computed from the contents
+	 * of the resource, the charsets the resource is read and the class
+	 * is written with, the version of Dolmen, the generator's settings
+	 * and the name of the class to generate. In other words, generating
+	 * a class for two resources with the same digest yields exactly
+	 * the same Java compilation unit.
+	 * <p>
+	 * The digest is computed by {@link Input#read(ClassFactory)} from
+	 * the very bytes it decodes, so that it always describes the
+	 * contents the class is generated from, even if the resource
+	 * is modified during the compilation.
+	 * 
+	 * @return a digest of the Dolmen resource and settings used
+	 * 	to generate the Java class, or {@code null} if the resource
+	 * 	has not been read yet
+	 */
+	public synchronized @Nullable String digest() {
+		return digest;
+	}
+	
+	/**
+	 * Records the digest of the resource for the given contents
+	 * 
+	 * @see #digest()
+	 * @param contents	the remaining bytes of the resource, which
+	 * 	are left untouched
+	 * @param charset	the charset the resource is decoded with
+	 * @param classCharset	the charset the class is written with
+	 * @return the digest
+	 */
+	synchronized String digest(ByteBuffer contents, Charset charset, Charset classCharset) {
+		final MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		md.update(("Dolmen " + Constants.VERSION + "\n").getBytes(StandardCharsets.UTF_8));
+		md.update((SETTINGS + "\n").getBytes(StandardCharsets.UTF_8));
+		md.update((classPackage.getElementName() + "." + className + "\n")
+				.getBytes(StandardCharsets.UTF_8));
+		md.update((charset.name() + ";" + classCharset.name() + "\n")
+				.getBytes(StandardCharsets.UTF_8));
+		md.update(contents.duplicate());
+		StringBuilder buf = new StringBuilder(64);
+		for (byte b : md.digest())
+			buf.append(String.format("%02x", b));
+		digest = buf.toString();
+		return digest;
+	}
+	
+	/**
+	 * This must be called once the resource has been
+	 * {@linkplain Input#read(ClassFactory) read}.
+	 * 
 	 * @return {@code true} if and only if the generated class
-	 * 	    {@link #classFile} described by {@code this} is less 
-	 * 		recent than the last modifications of {@link #file}
+	 * 	{@link #classFile} described by {@code this} must be
+	 * 	generated again, i.e. if it does not exist or if it was
+	 *  generated from a different {@link #digest() digest}
 	 */
 	public boolean isStale() {
 		if (!classFile.exists()) return true;
+		final @Nullable String current = digest();
+		if (current == null) return true;
+		String genDigest;
+		try {
+			genDigest = classResource.getPersistentProperty(Utils.DIGEST_PROPERTY);
+		} catch (CoreException e) {
+			// ignore and rebuild
+			return true;
+		}
+		// Classes generated before digests were recorded
+		// are checked using the generation timestamp
+		if (genDigest == null) return isOlderThanSource();
+		return !genDigest.equals(current);
+	}
+	
+	/**
+	 * @return {@code true} if and only if the generated class
+	 * 	    {@link #classFile} described by {@code this} is less 
+	 * 		recent than the last modifications of {@link #file}
+	 */
+	private boolean isOlderThanSource() {
 		String genProp;
 		try {
 			genProp = classResource.getPersistentProperty(Utils.GENERATED_PROPERTY);
@@ -0,0 +1,205 @@
+package org.stekikun.dolmenplugin.builders;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.resources.IResourceRuleFactory;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.SubMonitor;
+import org.eclipse.core.runtime.jobs.ISchedulingRule;
+import org.eclipse.core.runtime.jobs.MultiRule;
+import org.eclipse.jdt.annotation.Nullable;
+import org.stekikun.dolmen.codegen.LexBuffer.Position;
+import org.stekikun.dolmen.codegen.SourceMapping;
+import org.stekikun.dolmen.syntax.IReport;
+import org.stekikun.dolmen.syntax.IReport.Severity;
+import org.stekikun.dolmen.syntax.Located;
+import org.stekikun.dolmenplugin.base.Marker;
+import org.stekikun.dolmenplugin.base.Trace;
+import org.stekikun.dolmenplugin.base.Utils;
+
+/**
+ * Describes the outcome of the compilation of a Dolmen
+ * lexer or grammar description, as computed by
+ * {@link JLCompile#generate(IFile)} or {@link JGCompile#generate(IFile)}.
+ * <p>
+ * Computing a compilation does not modify the workspace: the problems
+ * found along the way are only recorded, and the generated Java file
+ * is only written to the file system. All workspace mutations, i.e.
+ * refreshing the generated resource, setting its properties and
+ * creating the problem markers, are performed by {@link #commit}.
+ * This allows several descriptions to be compiled concurrently,
+ * whereas committing the results is done on the builder's thread.
+ *
+ * @author Stéphane Lescuyer
+ */
+public final class Compilation {
+
+	// The Dolmen resource which was compiled
+	public final IFile resource;
+
+	// The class factory for the compiled resource, or {@code null}
+	// if the resource did not exist or could not be compiled at all
+	private final @Nullable ClassFactory cf;
+	// The problems found during the compilation
+	private final List<IReport> reports;
+	// The source mapping for the generated class, or {@code null}
+	// if no class has been generated
+	private @Nullable SourceMapping smap;
+	// Whether the generated class was found to be up-to-date,
+	// in which case nothing has been compiled at all
+	private boolean upToDate;
+
+	private Compilation(IFile resource, @Nullable ClassFactory cf) {
+		this.resource = resource;
+		this.cf = cf;
+		this.reports = new ArrayList<>();
+		this.smap = null;
+		this.upToDate = false;
+	}
+
+	/**
+	 * @param resource
+	 * @param cf	can be {@code null} if the compilation did not
+	 * 				go as far as computing the class factory
+	 * @return a new compilation for the given resource, with no
+	 * 	reports and no generated class yet
+	 */
+	static Compilation start(IFile resource, @Nullable ClassFactory cf) {
+		return new Compilation(resource, cf);
+	}
+
+	/**
+	 * Records the given problem reports in this compilation
+	 *
+	 * @param reports_
+	 */
+	void report(List<? extends IReport> reports_) {
+		this.reports.addAll(reports_);
+	}
+
+	/**
+	 * Records an error at the region described by the given positions
+	 *
+	 * @param message
+	 * @param start
+	 * @param end	the end offset of the erroneous region
+	 */
+	void error(@Nullable String message, Position start, int end) {
+		Position endPos = new Position(start.filename, end, start.line, start.bol);
+		String msg = String.valueOf(message);
+		reports.add(IReport.of(msg, Severity.ERROR, Located.of(msg, start, endPos)));
+	}
+
+	/**
+	 * Records that the class described by the compilation's
+	 * class factory was successfully generated, with the given
+	 * source mapping
+	 *
+	 * @param smap_
+	 */
+	void generated(SourceMapping smap_) {
+		if (cf == null)
+			throw new IllegalStateException("No class factory for " + resource);
+		this.smap = smap_;
+	}
+
+	/**
+	 * Records that the class described by the compilation's
+	 * class factory is up-to-date and need not be generated
+	 * again, in which case the problems previously reported on
+	 * the resource are still relevant
+	 */
+	void upToDate() {
+		this.upToDate = true;
+	}
+	
+	/**
+	 * @return the problems reported during this compilation
+	 */
+	public List<IReport> getReports() {
+		return Collections.unmodifiableList(reports);
+	}
+
+	/**
+	 * @return whether a Java class has been generated by this compilation
+	 */
+	public boolean hasGenerated() {
+		return smap != null;
+	}
+
+	/**
+	 * @return the scheduling rule which must be held in order
+	 * 	to {@linkplain #commit commit} this compilation, which
+	 * 	only covers {@link #resource} and the generated class
+	 */
+	public @Nullable ISchedulingRule getRule() {
+		final IResourceRuleFactory factory = resource.getWorkspace().getRuleFactory();
+		ISchedulingRule rule = factory.markerRule(resource);
+		final @Nullable ClassFactory cf_ = cf;
+		if (upToDate || cf_ == null || smap == null)
+			return rule;
+		final IFile newRes = cf_.classResource;
+		rule = MultiRule.combine(rule, factory.refreshRule(newRes));
+		rule = MultiRule.combine(rule, factory.modifyRule(newRes));
+		rule = MultiRule.combine(rule, factory.derivedRule(newRes));
+		rule = MultiRule.combine(rule, factory.markerRule(newRes));
+		return rule;
+	}
+
+	/**
+	 * Publishes the results of this compilation in the workspace:
+	 * the Dolmen markers on {@link #resource} are reconciled with the
+	 * problems reported during the compilation, and the generated
+	 * class, if any, is refreshed and marked as derived from
+	 * {@link #resource}. Nothing is done if the generated class
+	 * was {@linkplain #upToDate() up-to-date}.
+	 * <p>
+	 * This must be called from a thread which owns the
+	 * {@linkplain #getRule() rule} of this compilation.
+	 *
+	 * @param monitor
+	 * @return a map from the generated resources to their source mappings
+	 * @throws CoreException
+	 */
+	public Map<IFile, SourceMapping> commit(IProgressMonitor monitor)
+			throws CoreException {
+		if (upToDate || !resource.exists())
+			return Collections.emptyMap();
+		try (Trace.Span span = Trace.begin("commit", "Reconcile markers", resource)) {
+			Marker.reconcile(resource, reports);
+		}
+
+		final @Nullable ClassFactory cf_ = cf;
+		final @Nullable SourceMapping smap_ = smap;
+		if (cf_ == null || smap_ == null)
+			return Collections.emptyMap();
+
+		// Only the generated class has been written outside
+		// of the workspace, so there is no need to refresh more
+		// Committing is not interrupted even if the monitor is canceled,
+		// lest the generated class be left without its properties
+		final SubMonitor progress = SubMonitor.convert(monitor, 2);
+		final IFile newRes = cf_.classResource;
+		try (Trace.Span span = Trace.begin("commit", "Refresh", newRes)) {
+			newRes.refreshLocal(IResource.DEPTH_ZERO, progress.newChild(1));
+			if (!newRes.isDerived())
+				newRes.setDerived(true, progress.newChild(1));
+			String now = Instant.now().toString();
+			String prop = "Generated from " + cf_.file.getAbsolutePath() + " (" + now + ")";
+			newRes.setPersistentProperty(Utils.GENERATED_PROPERTY, prop);
+			newRes.setPersistentProperty(Utils.DIGEST_PROPERTY, cf_.digest());
+		}
+		try (Trace.Span span = Trace.begin("commit", "Add mappings", newRes)) {
+			Marker.addMappings(newRes, smap_);
+		}
+
+		return Collections.singletonMap(newRes, smap_);
+	}
+}
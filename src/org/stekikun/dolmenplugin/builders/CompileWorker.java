@@ -0,0 +1,426 @@
+package org.stekikun.dolmenplugin.builders;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.NullProgressMonitor;
+import org.eclipse.jdt.annotation.Nullable;
+import org.stekikun.dolmen.codegen.LexBuffer.Position;
+import org.stekikun.dolmen.codegen.SourceMapping;
+import org.stekikun.dolmen.common.Bookkeeper;
+import org.stekikun.dolmen.syntax.IReport;
+import org.stekikun.dolmen.syntax.IReport.Severity;
+import org.stekikun.dolmen.syntax.Located;
+import org.stekikun.dolmenplugin.base.BuildOptions;
+import org.stekikun.dolmenplugin.base.Mappings;
+
+/**
+ * The entry point of the worker processes in which Dolmen descriptions
+ * are compiled when the {@link BuildOptions#worker} option is set, so
+ * that a description whose compilation exhausts the memory or crashes
+ * does not take the IDE down with it. Worker processes are started and
+ * driven by the {@link WorkerPool}.
+ * <p>
+ * A worker reads {@linkplain Request requests} on its standard input,
+ * compiles the descriptions they contain with the same {@link Pipeline} as
+ * {@link JLCompile} and {@link JGCompile}, and writes the corresponding
+ * {@linkplain Response responses} on its standard output, until its
+ * standard input is closed. Requests and responses use a compact binary
+ * format, which starts with a handshake from the worker.
+ * <p>
+ * <i>This class must not depend on the workspace, nor on anything
+ *  but the Dolmen runtime and the Equinox common runtime, which are
+ *  the only libraries available in the worker processes.
+ * </i>
+ *
+ * @author Stéphane Lescuyer
+ */
+public final class CompileWorker {
+
+	private CompileWorker() {
+		// Static utility only
+	}
+
+	/**
+	 * Magic number sent by a worker when it starts
+	 */
+	static final int MAGIC = 0x444C4D57;	// "DLMW"
+
+	/**
+	 * The version of the requests' and responses' format
+	 */
+	static final int VERSION = 2;
+
+	/**
+	 * A request to compile a Dolmen description
+	 */
+	static final class Request {
+		/** Whether the description is a lexer or a grammar description */
+		final boolean lexer;
+		/** The path of the description on the file system */
+		final String filename;
+		/** The package of the class to generate */
+		final String packageName;
+		/** The unqualified name of the class to generate */
+		final String className;
+		/** The contents of the description */
+		final String contents;
+		/** The name of the charset the generated class will be written with */
+		final String charsetName;
+		/** The budget of the compilation, except for the wall time */
+		final int maxStates;
+		final int maxNonTerminals;
+		final int maxGeneratedKiB;
+
+		Request(boolean lexer, String filename, String packageName,
+				String className, String contents, String charsetName,
+				int maxStates, int maxNonTerminals, int maxGeneratedKiB) {
+			this.lexer = lexer;
+			this.filename = filename;
+			this.packageName = packageName;
+			this.className = className;
+			this.contents = contents;
+			this.charsetName = charsetName;
+			this.maxStates = maxStates;
+			this.maxNonTerminals = maxNonTerminals;
+			this.maxGeneratedKiB = maxGeneratedKiB;
+		}
+
+		void write(DataOutputStream out) throws IOException {
+			out.writeBoolean(lexer);
+			writeString(out, filename);
+			writeString(out, packageName);
+			writeString(out, className);
+			writeString(out, contents);
+			writeString(out, charsetName);
+			out.writeInt(maxStates);
+			out.writeInt(maxNonTerminals);
+			out.writeInt(maxGeneratedKiB);
+		}
+
+		static Request read(DataInputStream in) throws IOException {
+			return new Request(in.readBoolean(), readString(in), readString(in),
+				readString(in), readString(in), readString(in),
+				in.readInt(), in.readInt(), in.readInt());
+		}
+
+		/**
+		 * @return the charset the generated class will be written with,
+		 * 	or the platform's default charset if it is not supported
+		 */
+		private Charset charset() {
+			try {
+				return Charset.forName(charsetName);
+			} catch (IllegalArgumentException e) {
+				return Charset.defaultCharset();
+			}
+		}
+
+		/**
+		 * @return the budget of the compilation in the worker, where
+		 * 	the wall time is not limited since it is enforced by the
+		 * 	{@link WorkerPool}
+		 */
+		private Budget budget() {
+			Map<String, String> args = new HashMap<>();
+			args.put(BuildOptions.MAX_TIME, "0");
+			args.put(BuildOptions.MAX_STATES, Integer.toString(maxStates));
+			args.put(BuildOptions.MAX_NON_TERMINALS, Integer.toString(maxNonTerminals));
+			args.put(BuildOptions.MAX_GENERATED_KIB, Integer.toString(maxGeneratedKiB));
+			return new Budget(BuildOptions.of(args), filename, new NullProgressMonitor());
+		}
+	}
+
+	/**
+	 * The outcome of the compilation of a Dolmen description
+	 */
+	static final class Response {
+		/** What the compilation logged */
+		final String log;
+		/** The problems reported by the compilation */
+		final List<IReport> reports;
+		/** The contents of the generated class, or {@code null} if not generated */
+		final @Nullable String contents;
+		/** The source mapping of the generated class, or {@code null} if not generated */
+		final @Nullable SourceMapping smap;
+		/**
+		 * Whether {@link #smap} is the complete source mapping of the
+		 * generated class, i.e. whether it had no composite mappings
+		 */
+		final boolean complete;
+		/** The number of states in the lexer's automata, or {@code -1} */
+		final int states;
+		/** The number of ground non-terminals in the grammar, or {@code -1} */
+		final int nonTerminals;
+
+		private Response(String log, List<IReport> reports,
+				@Nullable String contents, @Nullable SourceMapping smap,
+				boolean complete, int states, int nonTerminals) {
+			this.log = log;
+			this.reports = reports;
+			this.contents = contents;
+			this.smap = smap;
+			this.complete = complete;
+			this.states = states;
+			this.nonTerminals = nonTerminals;
+		}
+
+		void write(DataOutputStream out) throws IOException {
+			writeString(out, log);
+			out.writeInt(reports.size());
+			for (IReport report : reports) {
+				writeString(out, report.getMessage());
+				writeString(out, report.getSeverity().name());
+				out.writeInt(report.getOffset());
+				out.writeInt(report.getLength());
+				out.writeInt(report.getLine());
+				out.writeInt(report.getColumn());
+			}
+			out.writeInt(states);
+			out.writeInt(nonTerminals);
+			final @Nullable String contents_ = contents;
+			final @Nullable SourceMapping smap_ = smap;
+			out.writeBoolean(contents_ != null && smap_ != null);
+			if (contents_ == null || smap_ == null) return;
+			writeString(out, contents_);
+			out.writeBoolean(complete);
+			List<SourceMapping.Mapping> mappings = new ArrayList<>();
+			smap_.forEach(mappings::add);
+			out.writeInt(mappings.size());
+			for (SourceMapping.Mapping mapping : mappings) {
+				out.writeInt(mapping.offset);
+				out.writeInt(mapping.length);
+				out.writeInt(mapping.origin.offset);
+				out.writeInt(mapping.origin.line);
+				out.writeInt(mapping.origin.bol);
+			}
+		}
+
+		static Response read(DataInputStream in, Request request) throws IOException {
+			final String filename = request.filename;
+			final String log = readString(in);
+			int nreports = in.readInt();
+			List<IReport> reports = new ArrayList<>(nreports);
+			for (int i = 0; i < nreports; ++i) {
+				String message = readString(in);
+				Severity severity;
+				try {
+					severity = Severity.valueOf(readString(in));
+				} catch (IllegalArgumentException e) {
+					throw new IOException("Invalid severity in worker response", e);
+				}
+				int offset = in.readInt();
+				int length = in.readInt();
+				int line = in.readInt();
+				int column = in.readInt();
+				Position start = new Position(filename, offset, line, offset - column);
+				Position end = new Position(filename, offset + length, line, offset - column);
+				reports.add(IReport.of(message, severity, Located.of(message, start, end)));
+			}
+			final int states = in.readInt();
+			final int nonTerminals = in.readInt();
+			if (!in.readBoolean())
+				return new Response(log, reports, null, null, true, states, nonTerminals);
+
+			final String contents = readString(in);
+			final boolean complete = in.readBoolean();
+			SourceMapping smap = new SourceMapping(request.className + ".java");
+			int nmappings = in.readInt();
+			for (int i = 0; i < nmappings; ++i) {
+				int offset = in.readInt();
+				int length = in.readInt();
+				int ooffset = in.readInt();
+				int line = in.readInt();
+				int bol = in.readInt();
+				smap.add(offset, length, new Position(filename, ooffset, line, bol), null);
+			}
+			return new Response(log, reports, contents, smap, complete, states, nonTerminals);
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0)
+			throw new IOException("Invalid string length: " + length);
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Serves compilation requests on the standard input until it is closed
+	 *
+	 * @param args	ignored
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(System.in));
+		final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(System.out));
+		// The standard output is reserved to the responses
+		System.setOut(System.err);
+
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.flush();
+		while (true) {
+			final Request request;
+			try {
+				request = Request.read(in);
+			} catch (EOFException e) {
+				// The pool does not need this worker anymore
+				return;
+			}
+			compile(request).write(out);
+			out.flush();
+		}
+	}
+
+	/**
+	 * A compilation in progress, which accumulates the problems
+	 * reported and the outcome of the compilation
+	 */
+	private static final class Outcome {
+		final List<IReport> reports = new ArrayList<>();
+		@Nullable String contents = null;
+		@Nullable SourceMapping smap = null;
+		boolean complete = true;
+		int states = -1;
+		int nonTerminals = -1;
+
+		void error(@Nullable String message, Position start, int end) {
+			Position endPos = new Position(start.filename, end, start.line, start.bol);
+			String msg = String.valueOf(message);
+			reports.add(IReport.of(msg, Severity.ERROR, Located.of(msg, start, endPos)));
+		}
+
+		void generated(CharSequence contents_, SourceMapping smap_) {
+			this.contents = contents_.toString();
+			this.smap = smap_;
+			// Composite mappings cannot be transmitted, see Mappings
+			this.complete = Mappings.isComplete(smap_);
+		}
+	}
+
+	/**
+	 * @param request
+	 * @return the outcome of the compilation described by {@code request}
+	 */
+	static Response compile(Request request) {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final PrintStream log;
+		try {
+			log = new PrintStream(bytes, true, StandardCharsets.UTF_8.name());
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+		final Outcome outcome = new Outcome();
+		try {
+			if (request.lexer)
+				compileLexer(request, log, outcome);
+			else
+				compileGrammar(request, log, outcome);
+		} catch (RuntimeException | StackOverflowError e) {
+			// Report unexpected failures as errors rather than
+			// losing this worker and the other requests it will serve
+			e.printStackTrace(log);
+			outcome.error("Unexpected failure while compiling " + request.filename + ": " + e,
+				new Position(request.filename), 0);
+		}
+		log.flush();
+		final String logged = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+		final @Nullable SourceMapping smap = outcome.smap;
+		return new Response(logged, outcome.reports, outcome.contents,
+			smap == null || outcome.complete ? smap : dropComposite(smap, request),
+			outcome.complete, outcome.states, outcome.nonTerminals);
+	}
+
+	private static SourceMapping dropComposite(SourceMapping smap, Request request) {
+		SourceMapping res = new SourceMapping(request.className + ".java");
+		smap.forEach(mapping -> {
+			if (!Mappings.isComposite(mapping))
+				res.add(mapping.offset, mapping.length, mapping.origin, null);
+		});
+		return res;
+	}
+
+	/**
+	 * The context of a {@link Pipeline} run in a worker process,
+	 * which records everything in the outcome of the compilation
+	 */
+	private static final class WorkerContext extends Pipeline.Context {
+		private final Outcome outcome;
+
+		WorkerContext(Request request, PrintStream log, Bookkeeper tasks, Outcome outcome) {
+			super(log, tasks, request.budget(), request.filename,
+				request.packageName, request.className, request.charset());
+			this.outcome = outcome;
+		}
+
+		@Override
+		void report(List<IReport> reports) {
+			outcome.reports.addAll(reports);
+		}
+
+		@Override
+		void error(@Nullable String message, Position start, int end) {
+			outcome.error(message, start, end);
+		}
+
+		@Override
+		IProgressMonitor phase(String name, @Nullable String subTask, int work) {
+			// Cancellation is handled by the pool, which kills the worker
+			return new NullProgressMonitor();
+		}
+
+		@Override
+		void states(int n) {
+			outcome.states = n;
+		}
+
+		@Override
+		void nonTerminals(int n) {
+			outcome.nonTerminals = n;
+		}
+	}
+
+	private static void compileLexer(Request request, PrintStream log, Outcome outcome) {
+		final Bookkeeper tasks = Bookkeeper.start(log, "Compiling lexer description "
+			+ request.filename + " in worker process");
+		final Pipeline.Generated generated = Pipeline.lexer(
+			new WorkerContext(request, log, tasks, outcome), new StringReader(request.contents));
+		if (generated == null) return;
+		outcome.generated(generated.contents, generated.smap);
+		tasks.leaveWith("Generated lexer " + request.className);
+	}
+
+	private static void compileGrammar(Request request, PrintStream log, Outcome outcome) {
+		final Bookkeeper tasks = Bookkeeper.start(log, "Compiling grammar description "
+			+ request.filename + " in worker process");
+		final Pipeline.Generated generated = Pipeline.grammar(
+			new WorkerContext(request, log, tasks, outcome), new StringReader(request.contents));
+		if (generated == null) return;
+		outcome.generated(generated.contents, generated.smap);
+		tasks.leaveWith("Generated parser " + request.className);
+	}
+}
@@ -0,0 +1,294 @@
+package org.stekikun.dolmenplugin.builders;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.core.resources.IFile;
+import org.eclipse.jdt.annotation.Nullable;
+import org.stekikun.dolmen.syntax.Extent;
+import org.stekikun.dolmen.syntax.IReport;
+import org.stekikun.dolmen.syntax.IReport.Severity;
+import org.stekikun.dolmen.syntax.Located;
+import org.stekikun.dolmen.syntax.PExtent;
+import org.stekikun.dolmen.syntax.PGrammar;
+import org.stekikun.dolmen.syntax.PGrammarRule;
+import org.stekikun.dolmen.syntax.PProduction;
+import org.stekikun.dolmen.syntax.TokenDecl;
+import org.stekikun.dolmen.unparam.Grammars;
+
+/**
+ * A cache of the results of the analyses performed on the grammar
+ * descriptions in the workspace, so that edits which only touch
+ * the semantic actions of a grammar do not require analysing
+ * it all over again.
+ * <p>
+ * The cache remembers, for each grammar description, the last
+ * {@linkplain Grammars.NTermsInfo NULLABLE, FIRST and FOLLOW sets}
+ * computed for its expanded grammar, along with the problems reported
+ * by the analyses and the {@linkplain Skeleton skeleton} of the
+ * grammar they were computed from. Only the results of successful
+ * analyses should be recorded, and the results are only reused for
+ * grammars with the very same skeleton.
+ * <p>
+ * Problems are attached to the symbols of the grammar, and the
+ * symbols move when semantic actions are edited. Cached problems
+ * are therefore recorded relatively to the skeleton, and attached
+ * back to the corresponding symbols of the new grammar when reused.
+ * <p>
+ * This class can be used concurrently on different resources.
+ *
+ * @author Stéphane Lescuyer
+ */
+final class GrammarCache {
+
+	private GrammarCache() {
+		// Static utility only
+	}
+
+	/**
+	 * The skeleton of a grammar describes everything which the
+	 * analyses of the grammar depend on, namely its tokens and
+	 * the structure of its rules, but abstracts away the contents
+	 * of the semantic actions except for the formal parameters they
+	 * refer to. The header, footer and options of the grammar are
+	 * not part of the skeleton either.
+	 * <p>
+	 * Besides its {@linkplain #fingerprint fingerprint}, a skeleton
+	 * records the symbols of the grammar in a canonical order, so
+	 * that two grammars with the same skeleton have pairwise
+	 * corresponding symbols.
+	 */
+	static final class Skeleton {
+		private final CharSequence source;
+		private final StringBuilder buf;
+		private final List<Located<?>> anchors;
+
+		private Skeleton(CharSequence source) {
+			this.source = source;
+			this.buf = new StringBuilder(source.length() / 2);
+			this.anchors = new ArrayList<>();
+		}
+
+		/** The structural fingerprint of the grammar */
+		private String fingerprint() {
+			return buf.toString();
+		}
+
+		private void symbol(Located<String> symb) {
+			anchors.add(symb);
+			buf.append(symb.val);
+		}
+
+		private void java(@Nullable Extent extent) {
+			if (extent == null) return;
+			buf.append('{');
+			// Do not use Extent#find, which opens the file every time,
+			// unless the extent is not in the source at all
+			if (extent.startPos < 0)
+				buf.append(extent.find());
+			else
+				buf.append(source, extent.startPos, extent.endPos + 1);
+			buf.append('}');
+		}
+
+		private void actual(PProduction.ActualExpr aexpr) {
+			symbol(aexpr.symb);
+			if (aexpr.params.isEmpty()) return;
+			buf.append('<');
+			for (PProduction.ActualExpr param : aexpr.params) {
+				actual(param);
+				buf.append(',');
+			}
+			buf.append('>');
+		}
+
+		private void production(PProduction prod) {
+			for (PProduction.Item item : prod.items) {
+				switch (item.getKind()) {
+				case ACTUAL: {
+					final PProduction.Actual actual = (PProduction.Actual) item;
+					final Located<String> binding = actual.binding;
+					if (binding != null) {
+						symbol(binding);
+						buf.append('=');
+					}
+					actual(actual.item);
+					java(actual.args);
+					break;
+				}
+				case ACTION: {
+					final PExtent extent = ((PProduction.ActionItem) item).extent;
+					buf.append("{");
+					for (PExtent.Hole hole : extent.holes)
+						buf.append('#').append(hole.name);
+					buf.append("}");
+					break;
+				}
+				case CONTINUE: {
+					buf.append("continue ");
+					symbol(((PProduction.Continue) item).cont);
+					break;
+				}
+				}
+				buf.append(' ');
+			}
+		}
+
+		private void grammar(PGrammar pgrammar) {
+			for (TokenDecl token : pgrammar.tokenDecls) {
+				buf.append("token ");
+				java(token.valueType);
+				symbol(token.name);
+				buf.append('\n');
+			}
+			for (PGrammarRule rule : pgrammar.rules.values()) {
+				buf.append(rule.visibility ? "public " : "private ");
+				java(rule.returnType);
+				buf.append(" rule ");
+				symbol(rule.name);
+				buf.append('<');
+				for (Located<String> param : rule.params) {
+					symbol(param);
+					buf.append(',');
+				}
+				buf.append('>');
+				java(rule.args);
+				buf.append(" =");
+				for (PProduction prod : rule.productions) {
+					buf.append("\n| ");
+					production(prod);
+				}
+				buf.append(";\n");
+			}
+		}
+
+		/**
+		 * @param report
+		 * @return the index of the symbol {@code report} is attached
+		 * 	to, or {@code -1} if it is not attached to a symbol
+		 */
+		private int anchor(IReport report) {
+			final int offset = report.getOffset();
+			final int end = offset + report.getLength();
+			for (int i = 0; i < anchors.size(); ++i) {
+				final Located<?> anchor = anchors.get(i);
+				if (anchor.start.offset == offset && anchor.end.offset == end)
+					return i;
+			}
+			return -1;
+		}
+	}
+
+	/**
+	 * @param pgrammar	the grammar parsed from {@code source}
+	 * @param source	the contents of the grammar description
+	 * @return the skeleton of {@code pgrammar}
+	 */
+	static Skeleton skeleton(PGrammar pgrammar, CharSequence source) {
+		final Skeleton skeleton = new Skeleton(source);
+		skeleton.grammar(pgrammar);
+		return skeleton;
+	}
+
+	/**
+	 * A problem reported by the analyses, attached
+	 * to the symbol with index {@link #anchor}
+	 */
+	private static final class Problem {
+		final int anchor;
+		final String message;
+		final Severity severity;
+
+		Problem(int anchor, String message, Severity severity) {
+			this.anchor = anchor;
+			this.message = message;
+			this.severity = severity;
+		}
+	}
+
+	/**
+	 * The results of the analyses of a grammar
+	 */
+	static final class Analysis {
+		/** The problems reported by the analyses */
+		final List<IReport> reports;
+		/** The NULLABLE, FIRST and FOLLOW sets of the expanded grammar */
+		final Grammars.NTermsInfo infos;
+
+		private Analysis(List<IReport> reports, Grammars.NTermsInfo infos) {
+			this.reports = reports;
+			this.infos = infos;
+		}
+	}
+
+	/**
+	 * A cached analysis along with the fingerprint
+	 * of the grammar it was computed from
+	 */
+	private static final class Cached {
+		final String fingerprint;
+		final List<Problem> problems;
+		final Grammars.NTermsInfo infos;
+
+		Cached(String fingerprint, List<Problem> problems, Grammars.NTermsInfo infos) {
+			this.fingerprint = fingerprint;
+			this.problems = problems;
+			this.infos = infos;
+		}
+	}
+
+	private static final Map<IFile, Cached> cache = new ConcurrentHashMap<>();
+
+	/**
+	 * @param res	the grammar description {@code skeleton} was computed from
+	 * @param skeleton
+	 * @return the results of the last analysis of {@code res}, if its
+	 * 	skeleton has not changed since, or {@code null} if the grammar
+	 * 	must be analysed from scratch
+	 */
+	static @Nullable Analysis find(IFile res, Skeleton skeleton) {
+		final Cached cached = cache.get(res);
+		if (cached == null) return null;
+		if (!cached.fingerprint.equals(skeleton.fingerprint())) return null;
+		List<IReport> reports = new ArrayList<>(cached.problems.size());
+		for (Problem pb : cached.problems)
+			reports.add(IReport.of(pb.message, pb.severity, skeleton.anchors.get(pb.anchor)));
+		return new Analysis(reports, cached.infos);
+	}
+
+	/**
+	 * Records the results of the successful analysis of the
+	 * grammar with the given {@code skeleton}, parsed from {@code res}.
+	 * Nothing is recorded if some of the problems reported are not
+	 * attached to symbols of the grammar.
+	 *
+	 * @param res
+	 * @param skeleton
+	 * @param reports	the problems reported by the analysis
+	 * @param infos
+	 */
+	static void record(IFile res, Skeleton skeleton,
+			List<IReport> reports, Grammars.NTermsInfo infos) {
+		List<Problem> problems = new ArrayList<>(reports.size());
+		for (IReport report : reports) {
+			final int anchor = skeleton.anchor(report);
+			if (anchor < 0) {
+				cache.remove(res);
+				return;
+			}
+			problems.add(new Problem(anchor, report.getMessage(), report.getSeverity()));
+		}
+		cache.put(res, new Cached(skeleton.fingerprint(), problems, infos));
+	}
+
+	/**
+	 * Forgets the analysis cached for {@code res}, if any
+	 *
+	 * @param res
+	 */
+	static void forget(IFile res) {
+		cache.remove(res);
+	}
+}
@@ -0,0 +1,201 @@
+package org.stekikun.dolmenplugin.builders;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.StandardOpenOption;
+
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.runtime.CoreException;
+
+/**
+ * Utility methods to read Dolmen descriptions from the file
+ * system, for the Dolmen compilers and the caches
+ * <p>
+ * Descriptions are decoded with the charset declared for them in
+ * the workspace, rather than with the platform's default charset.
+ * Their contents are decoded in one go into a character buffer
+ * which is reused by subsequent reads on the same thread, and large
+ * descriptions are read through a memory-mapped file channel rather
+ * than copied into the heap first.
+ * <p>
+ * <i>A mapping cannot be released deterministically: it stays open
+ *  until its buffer is garbage-collected. On Windows, a file which is
+ *  mapped cannot be replaced, which would make saving a description
+ *  in the editor fail after a build, so descriptions are never mapped
+ *  on this platform.
+ * </i>
+ *
+ * @author Stéphane Lescuyer
+ */
+final class Input {
+
+	private Input() {
+		// Static utility only
+	}
+
+	/**
+	 * The size in bytes from which descriptions are memory-mapped
+	 * rather than read; mapping a file has a fixed cost which only
+	 * pays off for large files
+	 */
+	private static final long MAP_THRESHOLD = 1L << 20;
+
+	/**
+	 * Whether files can be memory-mapped while they may be modified
+	 * by other programs, which is not the case on Windows
+	 */
+	private static final boolean CAN_MAP =
+		!System.getProperty("os.name", "").startsWith("Windows");
+
+	/**
+	 * The capacity in characters above which the character buffer
+	 * used to decode a description is not kept for subsequent reads
+	 */
+	private static final int MAX_RETAINED = 1 << 23;
+
+	/**
+	 * The character buffer reused on each thread
+	 */
+	private static final ThreadLocal<CharBuffer> buffers =
+		ThreadLocal.withInitial(() -> CharBuffer.allocate(1 << 16));
+
+	/**
+	 * @param res
+	 * @return the charset declared for {@code res} in the workspace,
+	 * 	or the platform's default charset if it cannot be determined
+	 */
+	static Charset charset(IFile res) {
+		try {
+			return Charset.forName(res.getCharset());
+		} catch (CoreException | IllegalArgumentException e) {
+			return Charset.defaultCharset();
+		}
+	}
+
+	/**
+	 * Reads the description described by {@code cf}.
+	 * <p>
+	 * <b>The returned buffer is only valid until the next call
+	 *  to this method on the same thread</b>, and must be copied,
+	 *  e.g. with {@link CharBuffer#toString()}, to be kept longer.
+	 * <p>
+	 * Also records the {@linkplain ClassFactory#digest() digest}
+	 * of the bytes read in {@code cf}.
+	 *
+	 * @param cf
+	 * @return the contents of the description, decoded with
+	 * 	its {@linkplain #charset(IFile) charset}
+	 * @throws IOException
+	 */
+	static CharBuffer read(ClassFactory cf) throws IOException {
+		final Charset charset = charset(cf.resource);
+		final CharsetDecoder decoder = charset.newDecoder()
+			// Replace malformed input as readers do
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		try (FileChannel channel = FileChannel.open(cf.file.toPath(), StandardOpenOption.READ)) {
+			final long size = channel.size();
+			if (size > Integer.MAX_VALUE)
+				throw new IOException("Description " + cf.file + " is too large");
+			final ByteBuffer bytes;
+			if (CAN_MAP && size >= MAP_THRESHOLD)
+				bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			else {
+				bytes = ByteBuffer.allocate((int) size);
+				while (bytes.hasRemaining() && channel.read(bytes) >= 0)
+					continue;
+				bytes.flip();
+			}
+			cf.digest(bytes, charset, charset(cf.classResource));
+			return decode(decoder, bytes,
+				(int) Math.min(Integer.MAX_VALUE, (long) (size * (double) decoder.averageCharsPerByte()) + 16));
+		}
+	}
+
+	private static CharBuffer decode(CharsetDecoder decoder, ByteBuffer bytes, int estimate)
+			throws CharacterCodingException {
+		CharBuffer out = buffers.get();
+		if (out.capacity() < estimate)
+			out = CharBuffer.allocate(estimate);
+		out.clear();
+		CoderResult cr;
+		while ((cr = decoder.decode(bytes, out, true)).isOverflow())
+			out = grow(out);
+		if (cr.isError()) cr.throwException();
+		while ((cr = decoder.flush(out)).isOverflow())
+			out = grow(out);
+		out.flip();
+		if (out.capacity() <= MAX_RETAINED)
+			buffers.set(out);
+		else
+			buffers.remove();
+		return out;
+	}
+
+	private static CharBuffer grow(CharBuffer out) {
+		CharBuffer res = CharBuffer.allocate(Math.max(1 << 16, out.capacity() * 2));
+		out.flip();
+		res.put(out);
+		return res;
+	}
+
+	/**
+	 * @param contents
+	 * @return a reader over the given contents, which does not
+	 * 	affect the position of {@code contents}
+	 */
+	static Reader reader(CharBuffer contents) {
+		return new BufferReader(contents.duplicate());
+	}
+
+	/**
+	 * A reader over a character buffer, which reads from
+	 * the buffer in bulk and needs no further buffering
+	 */
+	private static final class BufferReader extends Reader {
+		private final CharBuffer buffer;
+
+		BufferReader(CharBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read(char[] cbuf, int off, int len) {
+			if (len == 0) return 0;
+			if (!buffer.hasRemaining()) return -1;
+			final int n = Math.min(len, buffer.remaining());
+			buffer.get(cbuf, off, n);
+			return n;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() : -1;
+		}
+
+		@Override
+		public long skip(long n) {
+			final int k = (int) Math.min(Math.max(n, 0), buffer.remaining());
+			buffer.position(buffer.position() + k);
+			return k;
+		}
+
+		@Override
+		public boolean ready() {
+			return true;
+		}
+
+		@Override
+		public void close() {
+			// Nothing to release
+		}
+	}
+}
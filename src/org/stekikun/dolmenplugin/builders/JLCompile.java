@@ -1,145 +1,251 @@
 package org.stekikun.dolmenplugin.builders;
 
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintStream;
-import java.io.Writer;
-import java.time.Instant;
+import java.nio.CharBuffer;
 import java.util.Collections;
-import java.util.List;
 import java.util.Map;
 
 import org.eclipse.core.resources.IFile;
 import org.eclipse.core.resources.IProject;
-import org.eclipse.core.resources.IResource;
 import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.OperationCanceledException;
 import org.eclipse.core.runtime.SubMonitor;
-import org.stekikun.dolmen.automaton.Automata;
-import org.stekikun.dolmen.automaton.Determinize;
-import org.stekikun.dolmen.codegen.AutomataOutput;
-import org.stekikun.dolmen.codegen.BaseParser.ParsingException;
-import org.stekikun.dolmen.codegen.Config;
-import org.stekikun.dolmen.codegen.LexBuffer.LexicalError;
 import org.stekikun.dolmen.codegen.LexBuffer.Position;
 import org.stekikun.dolmen.codegen.SourceMapping;
 import org.stekikun.dolmen.common.Bookkeeper;
-import org.stekikun.dolmen.common.CountingWriter;
-import org.stekikun.dolmen.jle.JLELexer;
-import org.stekikun.dolmen.jle.JLEParser;
-import org.stekikun.dolmen.syntax.IReport;
 import org.stekikun.dolmen.syntax.Lexer;
-import org.stekikun.dolmen.syntax.Reporter;
-import org.stekikun.dolmenplugin.base.Marker;
-import org.stekikun.dolmenplugin.base.Utils;
+import org.stekikun.dolmenplugin.base.BuildOptions;
 
 public final class JLCompile {
 
 	private final PrintStream log;
 	private final SubMonitor monitor;
+	private final BuildOptions options;
 	
 	public JLCompile(PrintStream log, SubMonitor monitor) {
+		this(log, monitor, BuildOptions.DEFAULT);
+	}
+	
+	public JLCompile(PrintStream log, SubMonitor monitor, BuildOptions options) {
 		this.log = log;
 		this.monitor = monitor;
+		this.options = options;
 	}
 
 	private static final Map<IFile, SourceMapping> FAILED = 
 		Collections.emptyMap();
 	
-	private static void logAndMark(Bookkeeper tasks, IFile res, List<IReport> reports) {
-		if (reports.isEmpty()) return;
-		Marker.addAll(res, reports);
-		tasks.problems(reports.size());
+	/**
+	 * Forgets whatever was cached about the given lexer description,
+	 * which has been removed from the workspace
+	 * 
+	 * @param res
+	 */
+	public static void forget(IFile res) {
+		AutomataCache.forget(res);
+		LayoutCache.forget(res);
 	}
 	
+	/**
+	 * Compiles the given lexer description and commits the
+	 * results to the workspace right away
+	 * 
+	 * @see #generate(IFile)
+	 * @see Compilation#commit
+	 * 
+	 * @param project
+	 * @param res
+	 * @return a map from the generated resources to their source mappings
+	 */
 	public Map<IFile, SourceMapping> compile(IProject project, IFile res) {
 		if (res == null || !res.exists())
 			return FAILED;
+		try {
+			return generate(res).commit(monitor);
+		} catch (CoreException e) {
+			e.printStackTrace(log);
+			return FAILED;
+		}
+	}
+	
+	/**
+	 * Compiles the given lexer description and generates the
+	 * corresponding Java lexer, but <b>does not modify the 
+	 * workspace</b>: the problems found and the generated class 
+	 * are recorded in the returned {@link Compilation}, which
+	 * must be {@linkplain Compilation#commit committed} afterwards.
+	 * <p>
+	 * This method can be called concurrently on different resources.
+	 * It reports progress to this compiler's monitor, and throws
+	 * {@link OperationCanceledException} as soon as the monitor
+	 * is canceled between two phases of the compilation, or
+	 * during the generation of the Java lexer.
+	 * <p>
+	 * The compilation is aborted with an error if it exceeds the
+	 * {@link Budget} set by this compiler's {@link BuildOptions}.
+	 * 
+	 * @param res
+	 * @return the outcome of the compilation of {@code res}
+	 */
+	public Compilation generate(IFile res) {
 		final Bookkeeper tasks = Bookkeeper.start(log, "Compiling lexer description " + res);
-		Marker.deleteAll(res);
-
+		final SubMonitor progress =
+			SubMonitor.convert(monitor, "Compiling " + res.getName(), 100);
+		final BuildMetrics.Probe probe = BuildMetrics.start(res);
+		final Budget budget = new Budget(options, res.getFullPath().toString(), progress);
+		try {
+			return generate(res, tasks, progress, probe, budget);
+		} catch (OperationCanceledException e) {
+			probe.outcome(BuildMetrics.Outcome.CANCELED);
+			tasks.aborted("Compilation of lexer description canceled");
+			throw e;
+		} finally {
+			probe.finish();
+		}
+	}
+	
+	private Compilation generate(IFile res, Bookkeeper tasks,
+			SubMonitor progress, BuildMetrics.Probe probe, Budget budget) {
+		progress.subTask("Checking for changes in " + res.getName());
+		progress.split(5);
+		probe.phase("check");
 		final ClassFactory cf = new ClassFactory(res);
+		final Compilation result = Compilation.start(res, cf);
+		// The description is read once and for all, in its declared charset,
+		// and its digest is computed from the very bytes which are compiled
+		final CharBuffer source;
+		try {
+			source = Input.read(cf);
+		} catch (IOException e) {
+			e.printStackTrace(log);
+			tasks.aborted("Could not read lexer description");
+			return result;
+		}
 		if (!cf.isStale()) {
 			tasks.leaveWith("Up-to-date lexer " + cf.classResource);
-			return Collections.emptyMap();
+			result.upToDate();
+			probe.outcome(BuildMetrics.Outcome.UP_TO_DATE);
+			return result;
 		}
-		
-		JLELexer jlLexer = null;
-		try (FileReader reader = new FileReader(cf.file)) {
-			jlLexer = new JLELexer(cf.file.getPath(), reader);
-			JLEParser jlParser = new JLEParser(jlLexer, JLELexer::main);
-			Lexer lexer = jlParser.lexer();
-			tasks.done("Lexer description successfully parsed");
-			
-			Reporter configReporter = new Reporter();
-			Config config = Config.ofLexer(lexer, configReporter);
-			logAndMark(tasks, res, configReporter.getReports());
-			
-			Automata aut = Determinize.lexer(lexer, true);
-			tasks.done("Compiled lexer description to automata");
-			tasks.infos("(" + aut.automataCells.length + " states in " 
-					+ aut.automataEntries.size() + " automata)");
-			
-			List<IReport> autReports = aut.findProblems(lexer);
-			logAndMark(tasks, res, autReports);
-			
-			SourceMapping smap;
-			try (Writer writer = 
-					new CountingWriter(new FileWriter(cf.classFile, false))) {
-				writer.append("package " + cf.classPackage.getElementName() + ";\n\n");
-				smap = AutomataOutput.output(writer, cf.className, config, aut);
-				tasks.leaveWith("Generated lexer in " + cf.classResource);
+		// If only comments or layout have changed since the last
+		// compilation, the generated class need not change
+		final LayoutCache.Tokens tokens = LayoutCache.tokens(cf, source);
+		if (tokens != null && LayoutCache.reuse(cf, tokens, result)) {
+			tasks.leaveWith("Up-to-date lexer " + cf.classResource
+				+ " (only comments or layout changed)");
+			probe.outcome(BuildMetrics.Outcome.LAYOUT_ONLY);
+			return result;
+		}
+		// If the same contents have already been compiled, e.g. on
+		// another branch, restore the outcome from the output cache
+		final OutputCache.Entry restored = OutputCache.find(cf);
+		if (restored != null) {
+			try {
+				Output.writeIfChanged(cf.classFile, Input.charset(cf.classResource), restored.contents);
+				result.report(restored.reports);
+				result.generated(restored.smap);
+				if (tokens != null)
+					LayoutCache.record(cf, tokens, restored.reports, restored.smap);
+				tasks.leaveWith("Restored lexer " + cf.classResource
+					+ " from the output cache");
+				probe.generated(cf.classFile.length());
+				probe.outcome(BuildMetrics.Outcome.RESTORED);
+				return result;
 			} catch (IOException e) {
+				// Compile the description instead
 				e.printStackTrace(log);
-				tasks.aborted("Could not output generated lexer");
-				return FAILED;
 			}
-			
-			project.refreshLocal(IResource.DEPTH_INFINITE, monitor);
-			
-			final IFile newRes = cf.classResource;
-			if (!newRes.isDerived())
-				newRes.setDerived(true, monitor);
-			String now = Instant.now().toString();
-			String prop = "Generated from " + cf.file.getAbsolutePath() + " (" + now + ")";
-			newRes.setPersistentProperty(Utils.GENERATED_PROPERTY, prop);
-			Marker.addMappings(newRes, smap);
-			
-			return Collections.singletonMap((IFile) newRes, smap);
 		}
-		catch (LexicalError e) {
-			Position start = e.pos == null ? jlLexer.getLexemeStart() : e.pos;
-			Position end = jlLexer.getLexemeEnd();
-			Marker.addError(res, e.getMessage(), start.line, start.offset, end.offset);
-			tasks.aborted("Lexical error in lexer description");
-		}
-		catch (ParsingException e) {
-			final Position start;
-			final int end;
-			if (e.pos == null) {
-				start = jlLexer.getLexemeStart();
-				end = jlLexer.getLexemeEnd().offset;
-			} else {
-				start = e.pos;
-				end = e.pos.offset + e.length;
-			}
-			Marker.addError(res, e.getMessage(), start.line, start.offset, end);
-			tasks.aborted("Syntax error in lexer description");
+		if (options.worker)
+			return remote(res, cf, source, tokens, tasks, result, progress, probe, budget);
+
+		final Pipeline.Context ctx = new LocalContext(res, cf, source,
+			log, tasks, result, progress, probe, budget);
+		final Pipeline.Generated generated = Pipeline.lexer(ctx, Input.reader(source));
+		if (generated == null)
+			return result;
+		// The class was generated in memory first, and is only written
+		// to the file system if it has actually changed
+		return output(cf, tokens, tasks, result, progress, probe,
+			generated.contents, generated.smap, true);
+	}
+
+	/**
+	 * Compiles the given lexer description in a {@linkplain WorkerPool
+	 * worker process}, and writes the generated lexer to the file system
+	 */
+	private Compilation remote(IFile res, ClassFactory cf, CharBuffer source, LayoutCache.Tokens tokens,
+			Bookkeeper tasks, Compilation result, SubMonitor progress,
+			BuildMetrics.Probe probe, Budget budget) {
+		progress.subTask("Compiling " + res.getName() + " in a worker process");
+		final SubMonitor worker = progress.split(90);
+		probe.phase("worker");
+		final CompileWorker.Response response;
+		try {
+			response = WorkerPool.compile(
+				WorkerPool.request(cf, source.toString(), options), options, budget, worker);
+		} catch (IOException e) {
+			e.printStackTrace(log);
+			result.error(e.getMessage(), new Position(cf.file.getPath()), 0);
+			tasks.aborted("Could not compile lexer description in a worker process");
+			return result;
+		} catch (Budget.Exceeded e) {
+			result.report(Collections.singletonList(e.report));
+			tasks.aborted("Compilation of lexer description exceeded its budget");
+			return result;
 		}
-		catch (Lexer.IllFormedException e) {
-			Marker.addAll(res, e.reports);
-			tasks.aborted("Lexer description is not well-formed");
+		log.print(response.log);
+		result.report(response.reports);
+		if (response.states >= 0)
+			probe.states(response.states);
+		final String contents = response.contents;
+		final SourceMapping smap = response.smap;
+		if (contents == null || smap == null) {
+			tasks.aborted("Lexer description could not be compiled");
+			return result;
 		}
-		catch (FileNotFoundException e) {
+		// Composite mappings are lost in the worker's response,
+		// so such an outcome must not be restored later on
+		return output(cf, tokens, tasks, result, progress, probe,
+			contents, smap, response.complete);
+	}
+
+	/**
+	 * Writes the generated lexer to the file system if it has changed,
+	 * and records the outcome of the compilation in the caches
+	 *
+	 * @param cacheable	whether the outcome can be recorded in the
+	 * 	{@link LayoutCache} and {@link OutputCache}
+	 */
+	private Compilation output(ClassFactory cf, LayoutCache.Tokens tokens,
+			Bookkeeper tasks, Compilation result, SubMonitor progress,
+			BuildMetrics.Probe probe, CharSequence contents, SourceMapping smap,
+			boolean cacheable) {
+		progress.split(5);
+		probe.phase("output");
+		try {
+			if (Output.writeIfChanged(cf.classFile, Input.charset(cf.classResource), contents))
+				tasks.leaveWith("Generated lexer in " + cf.classResource);
+			else
+				tasks.leaveWith("Generated lexer is identical to " + cf.classResource);
+		} catch (IOException e) {
 			e.printStackTrace(log);
+			tasks.aborted("Could not output generated lexer");
+			return result;
 		}
-		catch (IOException e) {
-			e.printStackTrace(log);
-		} 
-		catch (CoreException e) {
+		
+		result.generated(smap);
+		probe.generated(cf.classFile.length());
+		probe.outcome(BuildMetrics.Outcome.GENERATED);
+		if (!cacheable) return result;
+		if (tokens != null)
+			LayoutCache.record(cf, tokens, result.getReports(), smap);
+		try {
+			OutputCache.store(cf, contents, result.getReports(), smap);
+		} catch (IOException e) {
 			e.printStackTrace(log);
 		}
-		return FAILED;
+		return result;
 	}
 }
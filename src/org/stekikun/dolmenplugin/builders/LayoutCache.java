@@ -0,0 +1,324 @@
+package org.stekikun.dolmenplugin.builders;
+
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.jdt.annotation.Nullable;
+import org.stekikun.dolmen.codegen.LexBuffer;
+import org.stekikun.dolmen.codegen.LexBuffer.LexicalError;
+import org.stekikun.dolmen.codegen.LexBuffer.Position;
+import org.stekikun.dolmen.codegen.SourceMapping;
+import org.stekikun.dolmen.jge.JGELexer;
+import org.stekikun.dolmen.jge.JGEParser;
+import org.stekikun.dolmen.jle.JLELexer;
+import org.stekikun.dolmen.jle.JLEParser;
+import org.stekikun.dolmen.syntax.IReport;
+import org.stekikun.dolmen.syntax.Located;
+import org.stekikun.dolmenplugin.base.Mappings;
+import org.stekikun.dolmenplugin.base.Utils;
+
+/**
+ * A cache of the last successful compilation of each Dolmen
+ * description in the workspace, so that edits which only touch
+ * the comments or the layout of a description do not require
+ * compiling it and generating the Java class again.
+ * <p>
+ * Descriptions are compared using the {@linkplain Tokens token
+ * streams} returned by the Dolmen lexers for lexer and grammar
+ * descriptions, which ignore comments and layout but keep the
+ * contents of the Java actions. When the token stream of a
+ * description has not changed since its last compilation, the
+ * generated class is still valid and only the positions of the
+ * problems reported and of the source mappings must be updated,
+ * which is done by matching the tokens of both streams.
+ * <p>
+ * <i>Composite source mappings, i.e. mappings stemming from the
+ *  instantiation of parameterized rules, cannot be relocated
+ *  as their structure is not accessible from outside Dolmen.
+ *  Compilations which produced such mappings are not cached.
+ * </i>
+ * <p>
+ * This class can be used concurrently on different resources.
+ *
+ * @author Stéphane Lescuyer
+ */
+final class LayoutCache {
+
+	private LayoutCache() {
+		// Static utility only
+	}
+
+	/**
+	 * The stream of tokens of a Dolmen description, along with
+	 * a fingerprint of the stream and the locations of the tokens
+	 * in the description
+	 */
+	static final class Tokens {
+		/** The contents of the description */
+		private final String source;
+		/** A digest of the kinds and contents of the tokens */
+		private final String fingerprint;
+		/** The start offsets of the tokens */
+		private final int[] starts;
+		/** The end offsets (exclusive) of the tokens */
+		private final int[] ends;
+		/** The lines on which the tokens start */
+		private final int[] lines;
+
+		private Tokens(String source, String fingerprint,
+				int[] starts, int[] ends, int[] lines) {
+			this.source = source;
+			this.fingerprint = fingerprint;
+			this.starts = starts;
+			this.ends = ends;
+			this.lines = lines;
+		}
+
+		/**
+		 * @param offset
+		 * @return the index of the last token starting
+		 * 	at or before {@code offset}, or {@code -1}
+		 */
+		private int tokenAt(int offset) {
+			int i = Arrays.binarySearch(starts, offset);
+			return i >= 0 ? i : -i - 2;
+		}
+
+		/**
+		 * @param offset
+		 * @return the offset of the beginning of the
+		 * 	line containing {@code offset}
+		 */
+		private int bol(int offset) {
+			for (int i = offset - 1; i >= 0; --i) {
+				char c = source.charAt(i);
+				if (c == '\n' || c == '\r') return i + 1;
+			}
+			return 0;
+		}
+
+		/**
+		 * @param from	the token stream {@code offset} and
+		 * 	{@code line} refer to, with the same fingerprint
+		 * 	as {@code this}
+		 * @param filename
+		 * @param offset
+		 * @param line
+		 * @return the position corresponding to the given
+		 * 	offset and line in the token stream {@code this}
+		 */
+		private Position relocate(Tokens from, String filename, int offset, int line) {
+			final int i = from.tokenAt(offset);
+			final int newOffset;
+			final int newLine;
+			if (i < 0) {
+				// Before the first token
+				newOffset = Math.min(offset, starts.length == 0 ? offset : starts[0]);
+				newLine = line;
+			}
+			else if (offset < from.ends[i]) {
+				// Inside the token, which has the same contents in both streams
+				newOffset = starts[i] + offset - from.starts[i];
+				newLine = lines[i] + line - from.lines[i];
+			}
+			else {
+				// In the layout which follows the token
+				final int limit = i + 1 < starts.length ? starts[i + 1] : source.length();
+				newOffset = Math.min(ends[i] + offset - from.ends[i], limit);
+				newLine = lines[i] + line - from.lines[i];
+			}
+			return new Position(filename, newOffset, newLine, bol(newOffset));
+		}
+	}
+
+	/**
+	 * Splits the given source into tokens using {@code next}
+	 *
+	 * @param source
+	 * @param lexer	a lexer reading from {@code source}
+	 * @param next	returns the next token kind, or {@code null} at
+	 * 	the end of the stream
+	 * @return the stream of tokens in {@code source}
+	 */
+	private static Tokens tokens(String source,
+			LexBuffer lexer, Supplier<@Nullable String> next) {
+		final MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		int[] starts = new int[256];
+		int[] ends = new int[256];
+		int[] lines = new int[256];
+		int n = 0;
+		String kind;
+		while ((kind = next.get()) != null) {
+			final Position start = lexer.getLexemeStart();
+			final int end = lexer.getLexemeEnd().offset;
+			if (n == starts.length) {
+				starts = Arrays.copyOf(starts, 2 * n);
+				ends = Arrays.copyOf(ends, 2 * n);
+				lines = Arrays.copyOf(lines, 2 * n);
+			}
+			starts[n] = start.offset;
+			ends[n] = end;
+			lines[n] = start.line;
+			++n;
+			// The raw text of the token is used rather than its value,
+			// so that tokens with the same fingerprint have the same length
+			md.update((kind + ":" + (end - start.offset) + ":")
+					.getBytes(StandardCharsets.UTF_8));
+			md.update(source.substring(start.offset, end)
+					.getBytes(StandardCharsets.UTF_8));
+		}
+		StringBuilder buf = new StringBuilder(64);
+		for (byte b : md.digest())
+			buf.append(String.format("%02x", b));
+		return new Tokens(source, buf.toString(),
+				Arrays.copyOf(starts, n), Arrays.copyOf(ends, n), Arrays.copyOf(lines, n));
+	}
+
+	/**
+	 * @param cf			the class factory for a lexer or grammar description
+	 * @param contents	the contents of the description
+	 * @return the stream of tokens in the description, or {@code null}
+	 * 	if the description contains lexical errors
+	 */
+	static @Nullable Tokens tokens(ClassFactory cf, CharSequence contents) {
+		final String source = contents.toString();
+		final String filename = cf.file.getPath();
+		try {
+			if ("jl".equals(cf.resource.getFileExtension())) {
+				final JLELexer lexer = new JLELexer(filename, new StringReader(source));
+				return tokens(source, lexer, () -> {
+					JLEParser.Token tok = lexer.main();
+					return tok == JLEParser.Token.EOF ? null : tok.getKind().name();
+				});
+			}
+			else {
+				final JGELexer lexer = new JGELexer(filename, new StringReader(source));
+				return tokens(source, lexer, () -> {
+					JGEParser.Token tok = lexer.main();
+					return tok == JGEParser.Token.EOF ? null : tok.getKind().name();
+				});
+			}
+		} catch (LexicalError e) {
+			return null;
+		}
+	}
+
+	/**
+	 * A successful compilation: the token stream of the description,
+	 * the digest of the description the class was generated from,
+	 * the problems reported and the source mapping of the class
+	 */
+	private static final class Cached {
+		final Tokens tokens;
+		final String digest;
+		final List<IReport> reports;
+		final SourceMapping smap;
+
+		Cached(Tokens tokens, String digest,
+				List<IReport> reports, SourceMapping smap) {
+			this.tokens = tokens;
+			this.digest = digest;
+			this.reports = reports;
+			this.smap = smap;
+		}
+	}
+
+	private static final Map<IFile, Cached> cache = new ConcurrentHashMap<>();
+
+	/**
+	 * Records the outcome of the successful compilation of the
+	 * description described by {@code cf}. Nothing is recorded
+	 * if {@code smap} contains composite mappings.
+	 *
+	 * @param cf
+	 * @param tokens	the token stream of the compiled description
+	 * @param reports	the problems reported by the compilation
+	 * @param smap		the source mapping of the generated class
+	 */
+	static void record(ClassFactory cf, Tokens tokens,
+			List<IReport> reports, SourceMapping smap) {
+		final String digest = cf.digest();
+		if (digest == null || !Mappings.isComplete(smap)) {
+			cache.remove(cf.resource);
+			return;
+		}
+		cache.put(cf.resource, new Cached(tokens, digest, new ArrayList<>(reports), smap));
+	}
+
+	/**
+	 * If the description described by {@code cf} has the same token
+	 * stream as when it was last compiled, and if the class generated
+	 * back then has not changed since, records the problems and the
+	 * source mapping of the last compilation in {@code result},
+	 * relocated to the current description.
+	 *
+	 * @param cf
+	 * @param tokens	the current token stream of the description
+	 * @param result
+	 * @return whether the last compilation could be reused
+	 */
+	static boolean reuse(ClassFactory cf, Tokens tokens, Compilation result) {
+		final Cached cached = cache.get(cf.resource);
+		if (cached == null) return false;
+		if (!cached.tokens.fingerprint.equals(tokens.fingerprint)) return false;
+		if (!cf.classFile.exists()) return false;
+		try {
+			if (!cached.digest.equals(
+					cf.classResource.getPersistentProperty(Utils.DIGEST_PROPERTY)))
+				return false;
+		} catch (CoreException e) {
+			return false;
+		}
+
+		final Tokens from = cached.tokens;
+		final List<IReport> reports = new ArrayList<>(cached.reports.size());
+		for (IReport report : cached.reports) {
+			final Position start = tokens.relocate(from,
+				report.getFilename(), report.getOffset(), report.getLine());
+			// Relocate the last character, as the end offset is exclusive
+			final int end = report.getLength() <= 0 ? start.offset :
+				tokens.relocate(from, report.getFilename(),
+					report.getOffset() + report.getLength() - 1, report.getLine()).offset + 1;
+			final Position endPos = new Position(start.filename, end, start.line, start.bol);
+			reports.add(IReport.of(report.getMessage(), report.getSeverity(),
+					Located.of(report.getMessage(), start, endPos)));
+		}
+		final SourceMapping smap = new SourceMapping(cf.classResource.getName());
+		cached.smap.forEach(mapping -> {
+			final Position origin = tokens.relocate(from,
+				mapping.origin.filename, mapping.origin.offset, mapping.origin.line);
+			smap.add(mapping.offset, mapping.length, origin, null);
+		});
+
+		result.report(reports);
+		result.generated(smap);
+		final String digest = cf.digest();
+		if (digest != null)
+			cache.put(cf.resource, new Cached(tokens, digest, reports, smap));
+		return true;
+	}
+
+	/**
+	 * Forgets the compilation cached for {@code res}, if any
+	 *
+	 * @param res
+	 */
+	static void forget(IFile res) {
+		cache.remove(res);
+	}
+}
@@ -0,0 +1,114 @@
+package org.stekikun.dolmenplugin.builders;
+
+import java.io.PrintStream;
+import java.nio.CharBuffer;
+import java.util.List;
+
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.SubMonitor;
+import org.eclipse.jdt.annotation.Nullable;
+import org.stekikun.dolmen.automaton.Automata;
+import org.stekikun.dolmen.codegen.LexBuffer.Position;
+import org.stekikun.dolmen.common.Bookkeeper;
+import org.stekikun.dolmen.syntax.IReport;
+import org.stekikun.dolmen.syntax.Lexer;
+import org.stekikun.dolmen.syntax.PGrammar;
+import org.stekikun.dolmen.unparam.Grammars;
+
+/**
+ * The context of a {@link Pipeline} run in the IDE's process by
+ * {@link JLCompile} or {@link JGCompile}: problems are recorded in
+ * the {@link Compilation}, progress is reported to the compiler's
+ * monitor and {@link BuildMetrics}, and intermediate results are
+ * shared with previous compilations through the {@link AutomataCache}
+ * and {@link GrammarCache}.
+ *
+ * @author Stéphane Lescuyer
+ */
+final class LocalContext extends Pipeline.Context {
+
+	private final IFile res;
+	private final Compilation result;
+	private final SubMonitor progress;
+	private final BuildMetrics.Probe probe;
+	private final CharBuffer source;
+	private GrammarCache.@Nullable Skeleton skeleton;
+
+	/**
+	 * @param res		the description being compiled
+	 * @param cf
+	 * @param source	the contents of {@code res}
+	 * @param log
+	 * @param tasks
+	 * @param result	where the problems are recorded
+	 * @param progress
+	 * @param probe
+	 * @param budget
+	 */
+	LocalContext(IFile res, ClassFactory cf, CharBuffer source,
+			PrintStream log, Bookkeeper tasks, Compilation result,
+			SubMonitor progress, BuildMetrics.Probe probe, Budget budget) {
+		super(log, tasks, budget, cf.file.getPath(),
+			cf.classPackage.getElementName(), cf.className, Input.charset(cf.classResource));
+		this.res = res;
+		this.result = result;
+		this.progress = progress;
+		this.probe = probe;
+		this.source = source;
+		this.skeleton = null;
+	}
+
+	@Override
+	void report(List<IReport> reports) {
+		result.report(reports);
+	}
+
+	@Override
+	void error(@Nullable String message, Position start, int end) {
+		result.error(message, start, end);
+	}
+
+	@Override
+	IProgressMonitor phase(String name, @Nullable String subTask, int work) {
+		if (subTask != null)
+			progress.subTask(subTask);
+		final SubMonitor monitor = progress.split(work);
+		probe.phase(name);
+		return monitor;
+	}
+
+	@Override
+	@Nullable Automata cachedAutomata(Lexer lexer) {
+		return AutomataCache.find(res, lexer);
+	}
+
+	@Override
+	void computedAutomata(Lexer lexer, Automata aut) {
+		AutomataCache.record(res, lexer, aut);
+	}
+
+	@Override
+	GrammarCache.@Nullable Analysis cachedAnalysis(PGrammar pgrammar) {
+		final GrammarCache.Skeleton skel = GrammarCache.skeleton(pgrammar, source);
+		skeleton = skel;
+		return GrammarCache.find(res, skel);
+	}
+
+	@Override
+	void analysed(PGrammar pgrammar, List<IReport> reports, Grammars.NTermsInfo infos) {
+		final GrammarCache.@Nullable Skeleton skel = skeleton;
+		if (skel == null) return;
+		GrammarCache.record(res, skel, reports, infos);
+	}
+
+	@Override
+	void states(int n) {
+		probe.states(n);
+	}
+
+	@Override
+	void nonTerminals(int n) {
+		probe.nonTerminals(n);
+	}
+}
@@ -0,0 +1,114 @@
+package org.stekikun.dolmenplugin.builders;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.OperationCanceledException;
+
+/**
+ * A writer which forwards everything to an in-memory buffer, but
+ * regularly checks whether a progress monitor has been canceled,
+ * and whether the contents written so far fit in the compilation's
+ * {@link Budget}. The size of the contents is measured in bytes, once
+ * encoded with the charset the generated class will be written with.
+ * <p>
+ * The Dolmen code generators output the generated classes entry
+ * by entry, or rule by rule, and do not offer any other hook, so
+ * this lets a long code generation be interrupted between two
+ * writes by throwing an {@link OperationCanceledException}.
+ *
+ * @author Stéphane Lescuyer
+ */
+final class MonitoredWriter extends FilterWriter {
+
+	/**
+	 * The number of characters written between two
+	 * consecutive checks of the monitor and budget
+	 */
+	private static final int CHECK_INTERVAL = 1 << 12;
+
+	private final StringWriter buffer;
+	private final IProgressMonitor monitor;
+	private final Budget budget;
+	private final CharsetEncoder encoder;
+	private final ByteBuffer scratch;
+	private int unchecked;
+	/** The number of characters of {@link #buffer} already encoded */
+	private int encodedChars;
+	/** The number of bytes these characters are encoded to */
+	private long encodedBytes;
+
+	/**
+	 * @param buffer	the underlying buffer
+	 * @param charset	the charset the contents will be written with
+	 * @param monitor	the monitor to check for cancellation
+	 * @param budget	the budget of the compilation
+	 */
+	MonitoredWriter(StringWriter buffer, Charset charset,
+			IProgressMonitor monitor, Budget budget) {
+		super(buffer);
+		this.buffer = buffer;
+		this.monitor = monitor;
+		this.budget = budget;
+		// Unmappable characters are replaced, as when writing the class
+		this.encoder = charset.newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		this.scratch = ByteBuffer.allocate(CHECK_INTERVAL);
+		this.unchecked = 0;
+		this.encodedChars = 0;
+		this.encodedBytes = 0;
+	}
+
+	/**
+	 * Encodes the characters written since the last check, to keep
+	 * track of the size of the contents in bytes. A surrogate pair
+	 * which is not complete yet is left for the next check.
+	 */
+	private void encode() {
+		final StringBuffer contents = buffer.getBuffer();
+		final CharBuffer in = CharBuffer.wrap(contents, encodedChars, contents.length());
+		while (true) {
+			scratch.clear();
+			final boolean overflow = encoder.encode(in, scratch, false).isOverflow();
+			encodedBytes += scratch.position();
+			if (!overflow) break;
+		}
+		encodedChars = in.position();
+	}
+
+	private void written(int len) {
+		unchecked += len;
+		if (unchecked < CHECK_INTERVAL) return;
+		unchecked = 0;
+		if (monitor.isCanceled())
+			throw new OperationCanceledException();
+		encode();
+		budget.checkGenerated(buffer.getBuffer(), encodedBytes);
+	}
+
+	@Override
+	public void write(int c) throws IOException {
+		super.write(c);
+		written(1);
+	}
+
+	@Override
+	public void write(char[] cbuf, int off, int len) throws IOException {
+		super.write(cbuf, off, len);
+		written(len);
+	}
+
+	@Override
+	public void write(String str, int off, int len) throws IOException {
+		super.write(str, off, len);
+		written(len);
+	}
+}
@@ -0,0 +1,135 @@
+package org.stekikun.dolmenplugin.builders;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Utility methods to write the Java classes generated
+ * by the Dolmen compilers to the file system
+ * <p>
+ * Generated classes are encoded in one go, written to a temporary
+ * file next to their target, and then moved over the target, so that
+ * the Java tooling or file watchers never see a partially written
+ * compilation unit.
+ *
+ * @author Stéphane Lescuyer
+ */
+final class Output {
+
+	private Output() {
+		// Static utility only
+	}
+
+	/**
+	 * The buffer reused on each thread to read back existing files.
+	 * Files are never memory-mapped, as a mapping cannot be released
+	 * deterministically and a mapped file cannot be replaced on some
+	 * platforms, e.g. on Windows.
+	 */
+	private static final ThreadLocal<ByteBuffer> chunks =
+		ThreadLocal.withInitial(() -> ByteBuffer.allocate(1 << 16));
+
+	/**
+	 * Writes {@code contents} to the given {@code file} with the given
+	 * {@code charset}, unless the file already has exactly these contents,
+	 * in which case the file, and in particular its timestamp, is left
+	 * untouched. This avoids triggering a compilation of the generated
+	 * class and of its dependents when it has not changed.
+	 * <p>
+	 * The file is replaced atomically when the file system supports it.
+	 *
+	 * @param file
+	 * @param charset
+	 * @param contents
+	 * @return {@code true} if the file was written, and {@code false}
+	 * 	if it was left untouched
+	 * @throws IOException
+	 */
+	static boolean writeIfChanged(File file, Charset charset, CharSequence contents)
+			throws IOException {
+		// Unmappable characters are replaced, as writers do
+		final ByteBuffer bytes = charset.encode(CharBuffer.wrap(contents));
+		final Path target = file.toPath();
+		if (hasContents(target, bytes))
+			return false;
+		final Path temp = createTemp(target);
+		try {
+			try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+				while (bytes.hasRemaining())
+					channel.write(bytes);
+			}
+			try {
+				Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+		return true;
+	}
+
+	/**
+	 * @param target
+	 * @param bytes
+	 * @return whether {@code target} is a regular file whose
+	 * 	contents are exactly the remaining bytes in {@code bytes}
+	 * @throws IOException
+	 */
+	private static boolean hasContents(Path target, ByteBuffer bytes) throws IOException {
+		if (!Files.isRegularFile(target)) return false;
+		try (FileChannel channel = FileChannel.open(target, StandardOpenOption.READ)) {
+			if (channel.size() != bytes.remaining()) return false;
+			// Compare the file chunk by chunk with the expected bytes
+			final ByteBuffer chunk = chunks.get();
+			final ByteBuffer expected = bytes.duplicate();
+			while (expected.hasRemaining()) {
+				chunk.clear();
+				if (chunk.remaining() > expected.remaining())
+					chunk.limit(expected.remaining());
+				while (chunk.hasRemaining())
+					if (channel.read(chunk) < 0) return false;
+				chunk.flip();
+				final ByteBuffer slice = expected.slice();
+				slice.limit(chunk.remaining());
+				if (!chunk.equals(slice)) return false;
+				expected.position(expected.position() + chunk.remaining());
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Creates a new empty file in the same directory as {@code target},
+	 * so that it can be moved over {@code target} atomically. Unlike
+	 * {@link Files#createTempFile}, the file is created with the
+	 * default permissions.
+	 *
+	 * @param target
+	 * @return the path to the new file
+	 * @throws IOException
+	 */
+	private static Path createTemp(Path target) throws IOException {
+		final Path dir = target.toAbsolutePath().getParent();
+		while (true) {
+			final Path temp = dir.resolve("." + target.getFileName() + "."
+				+ Long.toHexString(ThreadLocalRandom.current().nextLong() >>> 16) + ".tmp");
+			try {
+				return Files.createFile(temp);
+			} catch (FileAlreadyExistsException e) {
+				continue;
+			}
+		}
+	}
+}
@@ -0,0 +1,274 @@
+package org.stekikun.dolmenplugin.builders;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import org.eclipse.jdt.annotation.Nullable;
+import org.stekikun.dolmen.codegen.LexBuffer.Position;
+import org.stekikun.dolmen.codegen.SourceMapping;
+import org.stekikun.dolmen.syntax.IReport;
+import org.stekikun.dolmen.syntax.IReport.Severity;
+import org.stekikun.dolmen.syntax.Located;
+import org.stekikun.dolmenplugin.Activator;
+import org.stekikun.dolmenplugin.base.Mappings;
+
+/**
+ * A local, content-addressed cache of the outcomes of the successful
+ * compilations of Dolmen descriptions, shared by all projects in the
+ * workspace. It lets descriptions whose contents have already been
+ * compiled at some point, e.g. on another branch, be restored by
+ * simply writing the generated class again.
+ * <p>
+ * Entries are keyed by the {@linkplain ClassFactory#digest() digest}
+ * of the descriptions, which covers their contents, the version
+ * of Dolmen, the generator's settings and the generated class's name.
+ * Each entry holds the generated Java class, the problems reported by
+ * the compilation and the source mapping of the class. Entries are
+ * stored as files in the plug-in's state location, and the least
+ * recently used entries are evicted when the total size of the
+ * cache exceeds {@link #MAX_SIZE}.
+ * <p>
+ * <i>The structure of <b>composite</b> mappings, i.e. mappings
+ *  stemming from the instantiation of parameterized rules, is not
+ *  accessible from outside Dolmen, and compilations which produced
+ *  such mappings are therefore not cached.
+ * </i>
+ * <p>
+ * This class can be used concurrently on different resources.
+ *
+ * @author Stéphane Lescuyer
+ */
+final class OutputCache {
+
+	private OutputCache() {
+		// Static utility only
+	}
+
+	/**
+	 * Magic number at the start of every entry
+	 */
+	private static final int MAGIC = 0x444C4D43;	// "DLMC"
+
+	/**
+	 * The version of the entries' format
+	 */
+	private static final int VERSION = 1;
+
+	/**
+	 * The name of the cache folder in the plug-in's state location
+	 */
+	private static final String CACHE_FOLDER = "output-cache";
+
+	/**
+	 * The extension of the entries in the cache folder
+	 */
+	private static final String EXTENSION = ".entry";
+
+	/**
+	 * The maximum total size of the entries in the cache, in bytes
+	 */
+	private static final long MAX_SIZE = 64L << 20;
+
+	/**
+	 * The outcome of a cached compilation
+	 */
+	static final class Entry {
+		/** The contents of the generated class */
+		final String contents;
+		/** The problems reported by the compilation */
+		final List<IReport> reports;
+		/** The source mapping of the generated class */
+		final SourceMapping smap;
+
+		private Entry(String contents, List<IReport> reports, SourceMapping smap) {
+			this.contents = contents;
+			this.reports = reports;
+			this.smap = smap;
+		}
+	}
+
+	/**
+	 * @return the cache folder, or {@code null} if
+	 * 	the plug-in is not running
+	 */
+	private static @Nullable File folder() {
+		final Activator activator = Activator.getDefault();
+		if (activator == null) return null;
+		File folder = activator.getStateLocation().append(CACHE_FOLDER).toFile();
+		if (!folder.isDirectory() && !folder.mkdirs()) return null;
+		return folder;
+	}
+
+	/**
+	 * @param cf
+	 * @return the entry file for the description described by
+	 * 	{@code cf}, or {@code null} if there is no cache folder
+	 * 	or the description could not be read
+	 */
+	private static @Nullable File entryFile(ClassFactory cf) {
+		final File folder = folder();
+		final String digest = cf.digest();
+		if (folder == null || digest == null) return null;
+		return new File(folder, digest + EXTENSION);
+	}
+
+	/**
+	 * @param cf
+	 * @return the cached outcome of the compilation of the
+	 * 	description described by {@code cf}, or {@code null}
+	 * 	if it is not in the cache
+	 */
+	static @Nullable Entry find(ClassFactory cf) {
+		final File file = entryFile(cf);
+		if (file == null || !file.isFile()) return null;
+		try {
+			ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+			if (buf.getInt() != MAGIC || buf.getInt() != VERSION)
+				return null;
+			final Entry entry = read(buf, cf);
+			// Record the use of the entry for the LRU eviction
+			file.setLastModified(System.currentTimeMillis());
+			return entry;
+		} catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+			// The entry is missing or corrupted, it will be stored again
+			return null;
+		}
+	}
+
+	private static Entry read(ByteBuffer buf, ClassFactory cf) {
+		final String filename = cf.file.getPath();
+		final String contents = readString(buf);
+
+		int nreports = buf.getInt();
+		List<IReport> reports = new ArrayList<>(nreports);
+		for (int i = 0; i < nreports; ++i) {
+			String message = readString(buf);
+			Severity severity = Severity.valueOf(readString(buf));
+			int offset = buf.getInt();
+			int length = buf.getInt();
+			int line = buf.getInt();
+			int column = buf.getInt();
+			Position start = new Position(filename, offset, line, offset - column);
+			Position end = new Position(filename, offset + length, line, offset - column);
+			reports.add(IReport.of(message, severity, Located.of(message, start, end)));
+		}
+
+		SourceMapping smap = new SourceMapping(cf.classResource.getName());
+		int nmappings = buf.getInt();
+		for (int i = 0; i < nmappings; ++i) {
+			int offset = buf.getInt();
+			int length = buf.getInt();
+			int ooffset = buf.getInt();
+			int line = buf.getInt();
+			int bol = buf.getInt();
+			smap.add(offset, length, new Position(filename, ooffset, line, bol), null);
+		}
+		return new Entry(contents, reports, smap);
+	}
+
+	/**
+	 * Stores the outcome of the successful compilation of the
+	 * description described by {@code cf} in the cache, unless
+	 * {@code smap} contains composite mappings
+	 *
+	 * @param cf
+	 * @param contents	the contents of the generated class
+	 * @param reports	the problems reported by the compilation
+	 * @param smap		the source mapping of the generated class
+	 * @throws IOException
+	 */
+	static void store(ClassFactory cf, CharSequence contents,
+			List<IReport> reports, SourceMapping smap) throws IOException {
+		final File file = entryFile(cf);
+		if (file == null) return;
+		if (!Mappings.isComplete(smap)) return;
+		List<SourceMapping.Mapping> mappings = new ArrayList<>();
+		smap.forEach(mappings::add);
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(contents.length() + 4096);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		writeString(out, contents.toString());
+
+		out.writeInt(reports.size());
+		for (IReport report : reports) {
+			writeString(out, report.getMessage());
+			writeString(out, report.getSeverity().name());
+			out.writeInt(report.getOffset());
+			out.writeInt(report.getLength());
+			out.writeInt(report.getLine());
+			out.writeInt(report.getColumn());
+		}
+
+		out.writeInt(mappings.size());
+		for (SourceMapping.Mapping mapping : mappings) {
+			out.writeInt(mapping.offset);
+			out.writeInt(mapping.length);
+			out.writeInt(mapping.origin.offset);
+			out.writeInt(mapping.origin.line);
+			out.writeInt(mapping.origin.bol);
+		}
+		out.flush();
+
+		// Write to a temporary file first so that an entry is never
+		// partially written, even if the same contents are being
+		// compiled concurrently in another project
+		final File tmp = File.createTempFile("entry", ".tmp", file.getParentFile());
+		try {
+			Files.write(tmp.toPath(), bytes.toByteArray());
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			tmp.delete();
+		}
+		evict(file.getParentFile());
+	}
+
+	/**
+	 * Deletes the least recently used entries in the given
+	 * cache folder until their total size is below {@link #MAX_SIZE}
+	 *
+	 * @param folder
+	 */
+	private static synchronized void evict(File folder) {
+		File[] entries = folder.listFiles((dir, name) -> name.endsWith(EXTENSION));
+		if (entries == null) return;
+		long size = 0;
+		for (File entry : entries)
+			size += entry.length();
+		if (size <= MAX_SIZE) return;
+		Arrays.sort(entries, Comparator.comparingLong(File::lastModified));
+		for (File entry : entries) {
+			if (size <= MAX_SIZE) break;
+			long length = entry.length();
+			if (entry.delete())
+				size -= length;
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(ByteBuffer buf) {
+		int length = buf.getInt();
+		if (length < 0 || length > buf.remaining())
+			throw new IllegalArgumentException("Invalid string length: " + length);
+		byte[] bytes = new byte[length];
+		buf.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
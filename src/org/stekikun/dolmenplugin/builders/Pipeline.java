@@ -0,0 +1,452 @@
+package org.stekikun.dolmenplugin.builders;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.jdt.annotation.Nullable;
+import org.stekikun.dolmen.automaton.Automata;
+import org.stekikun.dolmen.automaton.Determinize;
+import org.stekikun.dolmen.codegen.AutomataOutput;
+import org.stekikun.dolmen.codegen.BaseParser.ParsingException;
+import org.stekikun.dolmen.codegen.Config;
+import org.stekikun.dolmen.codegen.GrammarOutput;
+import org.stekikun.dolmen.codegen.LexBuffer.LexicalError;
+import org.stekikun.dolmen.codegen.LexBuffer.Position;
+import org.stekikun.dolmen.codegen.SourceMapping;
+import org.stekikun.dolmen.common.Bookkeeper;
+import org.stekikun.dolmen.common.CountingWriter;
+import org.stekikun.dolmen.common.Lists;
+import org.stekikun.dolmen.jge.JGELexer;
+import org.stekikun.dolmen.jge.JGEParser;
+import org.stekikun.dolmen.jle.JLELexer;
+import org.stekikun.dolmen.jle.JLEParser;
+import org.stekikun.dolmen.syntax.IReport;
+import org.stekikun.dolmen.syntax.Lexer;
+import org.stekikun.dolmen.syntax.Located;
+import org.stekikun.dolmen.syntax.PGrammar;
+import org.stekikun.dolmen.syntax.PGrammarRule;
+import org.stekikun.dolmen.syntax.PGrammars;
+import org.stekikun.dolmen.syntax.Reporter;
+import org.stekikun.dolmen.unparam.Expansion;
+import org.stekikun.dolmen.unparam.Expansion.PGrammarNotExpandable;
+import org.stekikun.dolmen.unparam.Grammar;
+import org.stekikun.dolmen.unparam.Grammars;
+
+/**
+ * The pipelines which compile the contents of Dolmen lexer and grammar
+ * descriptions to Java classes, from parsing to code generation. They
+ * are shared by the in-process compilers {@link JLCompile} and
+ * {@link JGCompile} and by the {@link CompileWorker} processes.
+ * <p>
+ * The pipelines generate the classes in memory and do not depend on
+ * the workspace: they report the problems they find and the phases
+ * they go through to a {@link Context} implemented by their caller,
+ * which can also provide intermediate results cached from previous
+ * compilations.
+ * <p>
+ * <i>Like {@link CompileWorker}, this class must not depend on anything
+ *  but the Dolmen runtime and the Equinox common runtime.
+ * </i>
+ *
+ * @author Stéphane Lescuyer
+ */
+final class Pipeline {
+
+	private Pipeline() {
+		// Static utility only
+	}
+
+	/**
+	 * Describes a compilation going through a pipeline, and receives
+	 * the problems reported and the progress of the compilation
+	 */
+	static abstract class Context {
+		/** Where the compilation logs its progression */
+		final PrintStream log;
+		/** The tasks of the compilation */
+		final Bookkeeper tasks;
+		/** The budget of the compilation */
+		final Budget budget;
+		/** The path of the description on the file system */
+		final String filename;
+		/** The package of the class to generate */
+		final String packageName;
+		/** The unqualified name of the class to generate */
+		final String className;
+		/** The charset the generated class will be written with */
+		final Charset charset;
+
+		Context(PrintStream log, Bookkeeper tasks, Budget budget, String filename,
+				String packageName, String className, Charset charset) {
+			this.log = log;
+			this.tasks = tasks;
+			this.budget = budget;
+			this.filename = filename;
+			this.packageName = packageName;
+			this.className = className;
+			this.charset = charset;
+		}
+
+		/**
+		 * Records the given problems found in the description
+		 *
+		 * @param reports
+		 */
+		abstract void report(List<IReport> reports);
+
+		/**
+		 * Records an error found in the description
+		 *
+		 * @param message
+		 * @param start
+		 * @param end	the offset where the error ends
+		 */
+		abstract void error(@Nullable String message, Position start, int end);
+
+		/**
+		 * Called when the compilation enters a new phase
+		 *
+		 * @param name		the name of the phase, as recorded in {@link BuildMetrics}
+		 * @param subTask	a description of the phase, or {@code null} if
+		 * 	the phase is part of the previous task
+		 * @param work		the share of the whole compilation, out of 100,
+		 * 	taken by the phase
+		 * @return the monitor to use during the phase
+		 */
+		abstract IProgressMonitor phase(String name, @Nullable String subTask, int work);
+
+		/**
+		 * @param lexer
+		 * @return the automata computed for {@code lexer} by a previous
+		 * 	compilation, if any
+		 */
+		@Nullable Automata cachedAutomata(Lexer lexer) {
+			return null;
+		}
+
+		/**
+		 * Called when the automata for {@code lexer} have been computed
+		 *
+		 * @param lexer
+		 * @param aut
+		 */
+		void computedAutomata(Lexer lexer, Automata aut) {
+			// Nothing by default
+		}
+
+		/**
+		 * @param pgrammar
+		 * @return the analysis of {@code pgrammar} performed by a previous
+		 * 	compilation, if any
+		 */
+		GrammarCache.@Nullable Analysis cachedAnalysis(PGrammar pgrammar) {
+			return null;
+		}
+
+		/**
+		 * Called when {@code pgrammar} has been successfully analysed
+		 *
+		 * @param pgrammar
+		 * @param reports	the problems reported by the analyses
+		 * @param infos
+		 */
+		void analysed(PGrammar pgrammar, List<IReport> reports, Grammars.NTermsInfo infos) {
+			// Nothing by default
+		}
+
+		/**
+		 * Records the number of states in the lexer's automata
+		 *
+		 * @param n
+		 */
+		void states(int n) {
+			// Nothing by default
+		}
+
+		/**
+		 * Records the number of ground non-terminals in the grammar
+		 *
+		 * @param n
+		 */
+		void nonTerminals(int n) {
+			// Nothing by default
+		}
+
+		private String name() {
+			return new File(filename).getName();
+		}
+	}
+
+	/**
+	 * A class generated by a pipeline
+	 */
+	static final class Generated {
+		/** The contents of the generated class */
+		final CharSequence contents;
+		/** The source mapping of the generated class */
+		final SourceMapping smap;
+
+		private Generated(CharSequence contents, SourceMapping smap) {
+			this.contents = contents;
+			this.smap = smap;
+		}
+	}
+
+	private static void logAndReport(Context ctx, List<IReport> reports) {
+		if (reports.isEmpty()) return;
+		ctx.report(reports);
+		ctx.tasks.problems(reports.size());
+	}
+
+	/**
+	 * Compiles the lexer description read from {@code reader}
+	 *
+	 * @param ctx
+	 * @param reader	an in-memory reader, which is not closed
+	 * @return the generated lexer, or {@code null} if the description
+	 * 	could not be compiled, in which case the reason has been
+	 * 	reported to {@code ctx}
+	 */
+	static @Nullable Generated lexer(Context ctx, Reader reader) {
+		final Bookkeeper tasks = ctx.tasks;
+		ctx.phase("parse", "Parsing " + ctx.name(), 10);
+		final JLELexer jlLexer = new JLELexer(ctx.filename, reader);
+		try {
+			JLEParser jlParser = new JLEParser(jlLexer, JLELexer::main);
+			Lexer lexer = jlParser.lexer();
+			tasks.done("Lexer description successfully parsed");
+			final List<Located<String>> entries = new ArrayList<>(lexer.entryPoints.size());
+			for (Lexer.Entry entry : lexer.entryPoints)
+				entries.add(entry.name);
+			ctx.budget.anchors(entries);
+
+			ctx.phase("config", "Checking options of " + ctx.name(), 5);
+			Reporter configReporter = new Reporter();
+			Config config = Config.ofLexer(lexer, configReporter);
+			logAndReport(ctx, configReporter.getReports());
+
+			// Determinization only depends on the regular expressions,
+			// so reuse the last automata if only actions have changed
+			ctx.phase("determinize", "Determinizing " + ctx.name(), 50);
+			Automata aut = ctx.cachedAutomata(lexer);
+			if (aut != null)
+				tasks.done("Reused automata from previous compilation");
+			else {
+				ctx.budget.checkTime("determinization");
+				// Cannot be interrupted, the budget only applies afterwards
+				aut = Determinize.lexer(lexer, true);
+				ctx.budget.checkStates(aut, lexer);
+				ctx.computedAutomata(lexer, aut);
+				tasks.done("Compiled lexer description to automata");
+			}
+			ctx.states(aut.automataCells.length);
+			tasks.infos("(" + aut.automataCells.length + " states in "
+					+ aut.automataEntries.size() + " automata)");
+
+			ctx.phase("problems", null, 5);
+			logAndReport(ctx, aut.findProblems(lexer));
+
+			final IProgressMonitor codegen =
+				ctx.phase("codegen", "Generating " + ctx.className + ".java", 20);
+			final StringWriter buffer = new StringWriter(1 << 16);
+			final SourceMapping smap;
+			try (Writer writer = new CountingWriter(
+					new MonitoredWriter(buffer, ctx.charset, codegen, ctx.budget))) {
+				writer.append("package " + ctx.packageName + ";\n\n");
+				smap = AutomataOutput.output(writer, ctx.className, config, aut);
+			}
+			return new Generated(buffer.getBuffer(), smap);
+		}
+		catch (LexicalError e) {
+			Position start = e.pos == null ? jlLexer.getLexemeStart() : e.pos;
+			Position end = jlLexer.getLexemeEnd();
+			ctx.error(e.getMessage(), start, end.offset);
+			tasks.aborted("Lexical error in lexer description");
+		}
+		catch (ParsingException e) {
+			final Position start;
+			final int end;
+			if (e.pos == null) {
+				start = jlLexer.getLexemeStart();
+				end = jlLexer.getLexemeEnd().offset;
+			} else {
+				start = e.pos;
+				end = e.pos.offset + e.length;
+			}
+			ctx.error(e.getMessage(), start, end);
+			tasks.aborted("Syntax error in lexer description");
+		}
+		catch (Lexer.IllFormedException e) {
+			ctx.report(e.reports);
+			tasks.aborted("Lexer description is not well-formed");
+		}
+		catch (Budget.Exceeded e) {
+			ctx.report(Lists.singleton(e.report));
+			tasks.aborted("Compilation of lexer description exceeded its budget");
+		}
+		catch (IOException e) {
+			e.printStackTrace(ctx.log);
+			ctx.error("Could not generate lexer: " + e.getMessage(),
+				new Position(ctx.filename), 0);
+			tasks.aborted("Could not generate lexer");
+		}
+		return null;
+	}
+
+	/**
+	 * Compiles the grammar description read from {@code reader}
+	 *
+	 * @param ctx
+	 * @param reader	an in-memory reader, which is not closed
+	 * @return the generated parser, or {@code null} if the description
+	 * 	could not be compiled, in which case the reason has been
+	 * 	reported to {@code ctx}
+	 */
+	static @Nullable Generated grammar(Context ctx, Reader reader) {
+		final Bookkeeper tasks = ctx.tasks;
+		ctx.phase("parse", "Parsing " + ctx.name(), 10);
+		final JGELexer jgLexer = new JGELexer(ctx.filename, reader);
+		try {
+			JGEParser jgParser = new JGEParser(jgLexer, JGELexer::main);
+			PGrammar pgrammar = jgParser.start();
+			tasks.done("Grammar description successfully parsed");
+			final List<Located<String>> rules = new ArrayList<>(pgrammar.rules.size());
+			for (PGrammarRule rule : pgrammar.rules.values())
+				rules.add(rule.name);
+			ctx.budget.anchors(rules);
+
+			ctx.phase("config", "Checking options of " + ctx.name(), 5);
+			Reporter configReporter = new Reporter();
+			Config config = Config.ofPGrammar(pgrammar, configReporter);
+			logAndReport(ctx, configReporter.getReports());
+
+			// The analyses only depend on the skeleton of the grammar,
+			// so reuse their results if only actions have changed
+			ctx.phase("analysis", "Analysing " + ctx.name(), 10);
+			final GrammarCache.@Nullable Analysis cached = ctx.cachedAnalysis(pgrammar);
+			final List<IReport> analysisReports = new ArrayList<>();
+			final Grammar grammar;
+			final Grammars.NTermsInfo infos;
+			if (cached != null) {
+				// The expansion is still needed to instantiate the new actions
+				ctx.phase("expansion", "Expanding " + ctx.name(), 35);
+				ctx.budget.checkExpansion(pgrammar);
+				ctx.budget.checkTime("grammar expansion");
+				grammar = Expansion.of(pgrammar);
+				tasks.done("Expanded to ground grammar");
+				ctx.nonTerminals(grammar.rules.size());
+				logAndReport(ctx, cached.reports);
+				infos = cached.infos;
+				tasks.done("Reused analysis from previous compilation");
+			}
+			else {
+				tasks.enter("Grammar expansion");
+				Reporter pdepsReporter = new Reporter();
+				PGrammars.Dependencies deps = PGrammars.dependencies(pgrammar.rules);
+				PGrammars.findUnusedSymbols(pgrammar, deps, pdepsReporter);
+				PGrammars.analyseGrammar(pgrammar, deps, pdepsReporter);
+				tasks.done("Analysed parametric rules");
+				logAndReport(ctx, pdepsReporter.getReports());
+				if (pdepsReporter.hasErrors()) {
+					tasks.aborted("Inconsistent use of parametric rules");
+					return null;
+				}
+				analysisReports.addAll(pdepsReporter.getReports());
+
+				Expansion.checkExpandability(pgrammar);
+				tasks.done("Expandability check successful");
+				ctx.phase("expansion", "Expanding " + ctx.name(), 20);
+				ctx.budget.checkExpansion(pgrammar);
+				ctx.budget.checkTime("grammar expansion");
+				grammar = Expansion.of(pgrammar);
+				tasks.leaveWith("Expanded to ground grammar");
+				ctx.nonTerminals(grammar.rules.size());
+				tasks.infos("(" + grammar.rules.size() + " ground non-terminals"
+						+ " from " + pgrammar.rules.size() + " rules)");
+
+				ctx.phase("ground-analysis", "Analysing expanded " + ctx.name(), 15);
+				Reporter depsReporter = new Reporter();
+				ctx.budget.checkTime("grammar analysis");
+				infos = Grammars.analyseGrammar(grammar, null, depsReporter);
+				tasks.done("Analysed expanded grammar");
+				logAndReport(ctx, depsReporter.getReports());
+				analysisReports.addAll(depsReporter.getReports());
+			}
+
+			ctx.phase("prediction-table", "Building prediction table for " + ctx.name(), 15);
+			ctx.budget.checkTime("prediction table construction");
+			Grammars.PredictionTable predictTable = Grammars.predictionTable(grammar, infos);
+			tasks.done("Built prediction table");
+			List<IReport> conflicts = predictTable.findConflicts();
+			if (!conflicts.isEmpty()) {
+				ctx.report(conflicts);
+				tasks.aborted("Expanded grammar is not LL(1)");
+				return null;
+			}
+			tasks.done("Expanded grammar is LL(1)");
+			if (cached == null)
+				ctx.analysed(pgrammar, analysisReports, infos);
+
+			final IProgressMonitor codegen =
+				ctx.phase("codegen", "Generating " + ctx.className + ".java", 15);
+			final StringWriter buffer = new StringWriter(1 << 16);
+			final SourceMapping smap;
+			try (Writer writer = new CountingWriter(
+					new MonitoredWriter(buffer, ctx.charset, codegen, ctx.budget))) {
+				writer.append("package " + ctx.packageName + ";\n\n");
+				smap = GrammarOutput.output(writer, ctx.className, config, grammar, predictTable);
+			}
+			return new Generated(buffer.getBuffer(), smap);
+		}
+		catch (LexicalError e) {
+			Position start = e.pos == null ? jgLexer.getLexemeStart() : e.pos;
+			Position end = jgLexer.getLexemeEnd();
+			ctx.error(e.getMessage(), start, end.offset);
+			tasks.aborted("Lexical error in grammar description");
+		}
+		catch (ParsingException e) {
+			final Position start;
+			final int end;
+			if (e.pos == null) {
+				start = jgLexer.getLexemeStart();
+				end = jgLexer.getLexemeEnd().offset;
+			} else {
+				start = e.pos;
+				end = e.pos.offset + e.length;
+			}
+			ctx.error(e.getMessage(), start, end);
+			tasks.aborted("Syntax error in grammar description");
+		}
+		catch (PGrammar.IllFormedException e) {
+			ctx.report(e.reports);
+			tasks.aborted("Grammar description is not well-formed");
+		}
+		catch (Grammar.IllFormedException e) {
+			ctx.report(e.reports);
+			tasks.aborted("Grammar description is not well-formed");
+		}
+		catch (PGrammarNotExpandable e) {
+			ctx.report(Lists.singleton(e.getReport()));
+			tasks.aborted("Grammar is not expandable");
+		}
+		catch (Budget.Exceeded e) {
+			ctx.report(Lists.singleton(e.report));
+			tasks.aborted("Compilation of grammar description exceeded its budget");
+		}
+		catch (IOException e) {
+			e.printStackTrace(ctx.log);
+			ctx.error("Could not generate parser: " + e.getMessage(),
+				new Position(ctx.filename), 0);
+			tasks.aborted("Could not generate parser");
+		}
+		return null;
+	}
+}
@@ -0,0 +1,307 @@
+package org.stekikun.dolmenplugin.builders;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.core.runtime.FileLocator;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.OperationCanceledException;
+import org.eclipse.jdt.annotation.Nullable;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+import org.osgi.framework.FrameworkUtil;
+import org.stekikun.dolmenplugin.base.BuildOptions;
+
+/**
+ * A workspace-wide pool of long-lived {@linkplain CompileWorker worker
+ * processes}, in which Dolmen descriptions are compiled when the
+ * {@link BuildOptions#worker} option is set.
+ * <p>
+ * Each worker is a separate JVM whose heap is limited by the
+ * {@link BuildOptions#workerHeap} option, so that a description whose
+ * compilation exhausts the memory only kills its worker. There are at
+ * most {@link BuildOptions#workers} workers at any time; they are
+ * started on demand and reused for subsequent compilations. A worker
+ * which crashes, or which is killed because its compilation exceeded
+ * the time {@link Budget} or was canceled, is simply replaced by a
+ * new one when needed.
+ * <p>
+ * This class can be used concurrently.
+ *
+ * @author Stéphane Lescuyer
+ */
+public final class WorkerPool {
+
+	private WorkerPool() {
+		// Static utility only
+	}
+
+	/**
+	 * How often the compilations in progress are checked for
+	 * cancellation and timeouts
+	 */
+	private static final long POLL_MILLIS = 100;
+
+	/**
+	 * The exit code of a worker which ran out of memory,
+	 * as set by {@code -XX:+ExitOnOutOfMemoryError}
+	 */
+	private static final int OOM_EXIT_CODE = 3;
+
+	/**
+	 * A running worker process
+	 */
+	private static final class Worker {
+		final Process process;
+		final int heap;
+		final DataOutputStream out;
+		final DataInputStream in;
+
+		/** Why the worker was killed, if it was */
+		volatile @Nullable String killed;
+
+		Worker(Process process, int heap) {
+			this.process = process;
+			this.heap = heap;
+			this.out = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+			this.in = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+			this.killed = null;
+		}
+
+		void kill(String reason) {
+			if (killed != null) return;
+			killed = reason;
+			process.destroyForcibly();
+		}
+	}
+
+	private static final String CANCELED = "canceled";
+	private static final String TIMEOUT = "timeout";
+
+	/** The idle workers, guarded by itself */
+	private static final Deque<Worker> idle = new ArrayDeque<>();
+	/** The number of running workers, guarded by {@link #idle} */
+	private static int running = 0;
+	/** Whether the pool has been shut down, guarded by {@link #idle} */
+	private static boolean shutdown = false;
+
+	private static final ScheduledExecutorService watchdog =
+		Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "Dolmen worker watchdog");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+	/**
+	 * @param cf		the class factory for the description
+	 * @param contents	the contents of the description
+	 * @param options	the options of the build
+	 * @return a request to compile the description described by
+	 * 	{@code cf} with the given contents
+	 */
+	static CompileWorker.Request request(ClassFactory cf, String contents, BuildOptions options) {
+		return new CompileWorker.Request("jl".equals(cf.resource.getFileExtension()),
+			cf.file.getPath(), cf.classPackage.getElementName(), cf.className, contents,
+			Input.charset(cf.classResource).name(),
+			options.maxStates, options.maxNonTerminals, options.maxGeneratedKiB);
+	}
+
+	/**
+	 * Compiles a Dolmen description in one of the workers of the pool,
+	 * waiting for a worker to be available if necessary
+	 *
+	 * @param request	the description to compile
+	 * @param options	the options of the build
+	 * @param budget	the budget of the compilation
+	 * @param monitor	the monitor of the compilation
+	 * @return the outcome of the compilation
+	 * @throws IOException if no worker could be started, or if the
+	 * 	worker crashed while compiling the description
+	 * @throws Budget.Exceeded if the compilation exceeded its time budget
+	 * @throws OperationCanceledException if the monitor is canceled
+	 */
+	static CompileWorker.Response compile(CompileWorker.Request request,
+			BuildOptions options, Budget budget, IProgressMonitor monitor) throws IOException {
+		final Worker worker = acquire(options, monitor);
+		// Kill the worker if the compilation must be interrupted, which
+		// makes it fail to read the response
+		final ScheduledFuture<?> watch = watchdog.scheduleWithFixedDelay(() -> {
+			if (monitor.isCanceled())
+				worker.kill(CANCELED);
+			else if (budget.remainingNanos() <= 0)
+				worker.kill(TIMEOUT);
+		}, POLL_MILLIS, POLL_MILLIS, TimeUnit.MILLISECONDS);
+		boolean healthy = false;
+		try {
+			request.write(worker.out);
+			worker.out.flush();
+			final CompileWorker.Response response = CompileWorker.Response.read(worker.in, request);
+			healthy = true;
+			return response;
+		} catch (IOException e) {
+			final @Nullable String killed = worker.killed;
+			if (CANCELED.equals(killed))
+				throw new OperationCanceledException();
+			if (TIMEOUT.equals(killed))
+				throw budget.timeExceeded("compilation in a worker process");
+			throw new IOException("The Dolmen worker process " + died(worker), e);
+		} finally {
+			watch.cancel(false);
+			release(worker, healthy && worker.killed == null);
+		}
+	}
+
+	private static String died(Worker worker) {
+		worker.kill("crashed");
+		try {
+			if (!worker.process.waitFor(1, TimeUnit.SECONDS))
+				return "stopped responding";
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return "stopped responding";
+		}
+		final int exit = worker.process.exitValue();
+		if (exit == OOM_EXIT_CODE)
+			return "ran out of memory (" + BuildOptions.WORKER_HEAP + "=" + worker.heap + "MiB)";
+		return "died unexpectedly (exit code " + exit + ")";
+	}
+
+	private static Worker acquire(BuildOptions options, IProgressMonitor monitor) throws IOException {
+		synchronized (idle) {
+			while (true) {
+				if (shutdown)
+					throw new IOException("The Dolmen worker processes have been shut down");
+				if (monitor.isCanceled())
+					throw new OperationCanceledException();
+				// Workers started with another heap limit are not reused
+				while (!idle.isEmpty()) {
+					final Worker worker = idle.pop();
+					if (worker.heap == options.workerHeap && worker.process.isAlive())
+						return worker;
+					worker.kill("stale");
+					--running;
+				}
+				if (running < options.workers) {
+					++running;
+					break;
+				}
+				try {
+					idle.wait(POLL_MILLIS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new OperationCanceledException();
+				}
+			}
+		}
+		try {
+			return start(options.workerHeap);
+		} catch (IOException | RuntimeException e) {
+			synchronized (idle) {
+				--running;
+				idle.notifyAll();
+			}
+			throw e;
+		}
+	}
+
+	private static void release(Worker worker, boolean healthy) {
+		synchronized (idle) {
+			if (healthy && !shutdown)
+				idle.push(worker);
+			else {
+				worker.kill("released");
+				--running;
+			}
+			idle.notifyAll();
+		}
+	}
+
+	/**
+	 * Starts a new worker process and waits for its handshake
+	 *
+	 * @param heap	the maximum heap size of the worker, in MiB
+	 * @return the new worker
+	 * @throws IOException
+	 */
+	private static Worker start(int heap) throws IOException {
+		final List<String> command = new ArrayList<>();
+		command.add(new File(System.getProperty("java.home"), "bin" + File.separator + "java").getPath());
+		command.add("-Xmx" + heap + "m");
+		command.add("-XX:+ExitOnOutOfMemoryError");
+		command.add("-cp");
+		command.add(String.join(File.pathSeparator, classpath()));
+		command.add(CompileWorker.class.getName());
+		final Process process = new ProcessBuilder(command)
+			.redirectError(ProcessBuilder.Redirect.INHERIT)
+			.start();
+		final Worker worker = new Worker(process, heap);
+		try {
+			if (worker.in.readInt() != CompileWorker.MAGIC
+				|| worker.in.readInt() != CompileWorker.VERSION)
+				throw new IOException("Unexpected handshake from the Dolmen worker process");
+		} catch (IOException e) {
+			worker.kill("handshake");
+			throw new IOException("Could not start the Dolmen worker process: " + e.getMessage(), e);
+		}
+		return worker;
+	}
+
+	/**
+	 * @return the class path of the worker processes, namely the
+	 * 	class path of this plug-in and the Equinox common runtime
+	 * @throws IOException
+	 */
+	private static List<String> classpath() throws IOException {
+		final List<String> classpath = new ArrayList<>();
+		final Bundle bundle = FrameworkUtil.getBundle(WorkerPool.class);
+		final String header = bundle.getHeaders().get(Constants.BUNDLE_CLASSPATH);
+		for (String entry : (header == null ? "." : header).split(",")) {
+			final String path = entry.split(";")[0].trim();
+			if (".".equals(path)) {
+				final File root = FileLocator.getBundleFile(bundle);
+				classpath.add(root.getPath());
+				// When running from the workspace, classes are in the output folder
+				final File bin = new File(root, "bin");
+				if (bin.isDirectory())
+					classpath.add(bin.getPath());
+				continue;
+			}
+			final URL url = bundle.getEntry(path);
+			if (url == null) continue;
+			classpath.add(new File(FileLocator.toFileURL(url).getPath()).getPath());
+		}
+		final Bundle common = FrameworkUtil.getBundle(IProgressMonitor.class);
+		if (common != null)
+			classpath.add(FileLocator.getBundleFile(common).getPath());
+		return classpath;
+	}
+
+	/**
+	 * Stops all the worker processes. Workers which are compiling
+	 * descriptions are stopped as soon as they are done.
+	 */
+	public static void shutdown() {
+		synchronized (idle) {
+			shutdown = true;
+			for (Worker worker : idle) {
+				worker.kill("shutdown");
+				--running;
+			}
+			idle.clear();
+			idle.notifyAll();
+		}
+	}
+}
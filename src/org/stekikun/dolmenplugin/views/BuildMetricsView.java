@@ -0,0 +1,199 @@
+package org.stekikun.dolmenplugin.views;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import org.eclipse.jface.action.Action;
+import org.eclipse.jface.action.IToolBarManager;
+import org.eclipse.jface.dialogs.MessageDialog;
+import org.eclipse.jface.viewers.ArrayContentProvider;
+import org.eclipse.jface.viewers.ColumnLabelProvider;
+import org.eclipse.jface.viewers.TableViewer;
+import org.eclipse.jface.viewers.TableViewerColumn;
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.graphics.Image;
+import org.eclipse.swt.widgets.Composite;
+import org.eclipse.swt.widgets.Display;
+import org.eclipse.swt.widgets.FileDialog;
+import org.eclipse.swt.widgets.Table;
+import org.eclipse.ui.ISharedImages;
+import org.eclipse.ui.PlatformUI;
+import org.eclipse.ui.part.ViewPart;
+import org.stekikun.dolmenplugin.Activator;
+import org.stekikun.dolmenplugin.base.Images;
+import org.stekikun.dolmenplugin.builders.BuildMetrics;
+import org.stekikun.dolmenplugin.builders.BuildMetrics.Phase;
+import org.stekikun.dolmenplugin.builders.BuildMetrics.Record;
+
+/**
+ * A view displaying the {@linkplain BuildMetrics history} of the last
+ * compilations of Dolmen descriptions, most recent first, with the
+ * time and memory spent in each phase of every compilation.
+ * <p>
+ * The history can be exported as JSON from the view's toolbar.
+ *
+ * @author Stéphane Lescuyer
+ */
+public final class BuildMetricsView extends ViewPart {
+
+	/**
+	 * ID of the view (keep it sync with plugin.xml)
+	 */
+	public static final String ID = "org.stekikun.dolmenplugin.views.BuildMetricsView";
+
+	private static final DateTimeFormatter TIME_FORMAT =
+		DateTimeFormatter.ofPattern("HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+	private TableViewer viewer;
+
+	/**
+	 * Refreshes the view when the history changes, which
+	 * can happen on any thread
+	 */
+	private final Runnable listener = () -> {
+		final Display display = PlatformUI.getWorkbench().getDisplay();
+		display.asyncExec(() -> {
+			if (viewer == null || viewer.getControl().isDisposed()) return;
+			refresh();
+		});
+	};
+
+	@Override
+	public void createPartControl(Composite parent) {
+		viewer = new TableViewer(parent,
+			SWT.MULTI | SWT.H_SCROLL | SWT.V_SCROLL | SWT.FULL_SELECTION);
+		final Table table = viewer.getTable();
+		table.setHeaderVisible(true);
+		table.setLinesVisible(true);
+
+		column("Started", 90, r -> TIME_FORMAT.format(r.start));
+		column("Description", 250, r -> r.description).setLabelProvider(
+			new ColumnLabelProvider() {
+				@Override
+				public String getText(Object element) {
+					return ((Record) element).description;
+				}
+
+				@Override
+				public Image getImage(Object element) {
+					return Activator.getImage(((Record) element).lexer ?
+						Images.DOLMEN_LEXER : Images.DOLMEN_PARSER);
+				}
+			});
+		column("Outcome", 90, r -> r.outcome.name().toLowerCase(Locale.ROOT).replace('_', '-'));
+		column("Total (ms)", 80, r -> millis(r.totalNanos()));
+		column("Allocated", 80, r -> bytes(r.totalAllocatedBytes()));
+		column("States / NTs", 80, r -> {
+			if (r.states >= 0) return r.states + " states";
+			if (r.nonTerminals >= 0) return r.nonTerminals + " NTs";
+			return "";
+		});
+		column("Generated", 80, r -> bytes(r.generatedBytes));
+		column("Phases", 400, r -> r.phases.stream()
+			.map(BuildMetricsView::phase)
+			.collect(Collectors.joining(", ")));
+
+		viewer.setContentProvider(ArrayContentProvider.getInstance());
+		refresh();
+		BuildMetrics.addListener(listener);
+
+		contributeToActionBars();
+	}
+
+	private TableViewerColumn column(String title, int width, Function<Record, String> text) {
+		final TableViewerColumn column = new TableViewerColumn(viewer, SWT.NONE);
+		column.getColumn().setText(title);
+		column.getColumn().setWidth(width);
+		column.getColumn().setResizable(true);
+		column.setLabelProvider(new ColumnLabelProvider() {
+			@Override
+			public String getText(Object element) {
+				return text.apply((Record) element);
+			}
+		});
+		return column;
+	}
+
+	private void refresh() {
+		final List<Record> records = BuildMetrics.history();
+		Collections.reverse(records);
+		viewer.setInput(records);
+	}
+
+	private void contributeToActionBars() {
+		final IToolBarManager toolbar = getViewSite().getActionBars().getToolBarManager();
+		final ISharedImages images = PlatformUI.getWorkbench().getSharedImages();
+
+		final Action export = new Action("Export as JSON...") {
+			@Override
+			public void run() {
+				exportJSON();
+			}
+		};
+		export.setToolTipText("Export the build metrics as JSON");
+		export.setImageDescriptor(images.getImageDescriptor(ISharedImages.IMG_ETOOL_SAVEAS_EDIT));
+		toolbar.add(export);
+
+		final Action clear = new Action("Clear") {
+			@Override
+			public void run() {
+				BuildMetrics.clear();
+			}
+		};
+		clear.setToolTipText("Clear the build metrics");
+		clear.setImageDescriptor(images.getImageDescriptor(ISharedImages.IMG_ETOOL_CLEAR));
+		toolbar.add(clear);
+	}
+
+	private void exportJSON() {
+		final FileDialog dialog = new FileDialog(getSite().getShell(), SWT.SAVE);
+		dialog.setText("Export Dolmen build metrics");
+		dialog.setFilterExtensions(new String[] { "*.json" });
+		dialog.setFileName("dolmen-build-metrics.json");
+		dialog.setOverwrite(true);
+		final String path = dialog.open();
+		if (path == null) return;
+		try (Writer writer = Files.newBufferedWriter(Paths.get(path), StandardCharsets.UTF_8)) {
+			BuildMetrics.toJSON(BuildMetrics.history(), writer);
+		} catch (IOException e) {
+			MessageDialog.openError(getSite().getShell(),
+				"Export Dolmen build metrics", "Could not export the build metrics: " + e.getMessage());
+		}
+	}
+
+	private static String phase(Phase phase) {
+		return phase.name + " " + millis(phase.nanos);
+	}
+
+	private static String millis(long nanos) {
+		return String.format(Locale.ROOT, "%.1f", nanos / 1e6);
+	}
+
+	private static String bytes(long n) {
+		if (n < 0) return "";
+		if (n < 1024) return n + " B";
+		if (n < 1024 * 1024) return String.format(Locale.ROOT, "%.1f KiB", n / 1024.0);
+		return String.format(Locale.ROOT, "%.1f MiB", n / (1024.0 * 1024.0));
+	}
+
+	@Override
+	public void setFocus() {
+		viewer.getControl().setFocus();
+	}
+
+	@Override
+	public void dispose() {
+		BuildMetrics.removeListener(listener);
+		super.dispose();
+	}
+}